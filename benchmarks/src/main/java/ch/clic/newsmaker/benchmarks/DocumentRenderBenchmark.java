@@ -0,0 +1,96 @@
+package ch.clic.newsmaker.benchmarks;
+
+import ch.clic.newsmaker.Format;
+import ch.clic.newsmaker.NewsDocument;
+import ch.clic.newsmaker.NewsFieldBean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Assemble the HTML of a whole document, like the export and the preview do
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DocumentRenderBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int fields;
+
+    @Param({"2", "4"})
+    public int languages;
+
+    @Param({"8"})
+    public int tags;
+
+    @Param({"1024"})
+    public int templateSize;
+
+    private Path folder;
+    private Format[] formats; // two identical formats, switching between them drops every cache
+    private NewsDocument document;
+    private List<NewsFieldBean> documentFields;
+    private long edits;
+
+    @Setup
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("newsmaker-bench");
+        SyntheticNewsletter.writeFormat(folder, languages, tags, templateSize);
+        formats = new Format[]{Format.fromFolder(folder), Format.fromFolder(folder)};
+
+        document = SyntheticNewsletter.createDocument(formats[0], fields);
+        documentFields = SyntheticNewsletter.fields(document);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticNewsletter.delete(folder);
+    }
+
+    /**
+     * Every field and every section is rendered again
+     */
+    @Benchmark
+    public String buildHTMLFull() {
+        document.formatProperty().set(formats[(int) (edits++ & 1)]);
+        return document.buildHTML();
+    }
+
+    /**
+     * A single field is edited, the other sections come from the cache
+     */
+    @Benchmark
+    public String buildHTMLAfterEdit() {
+        long edit = edits++;
+        NewsFieldBean field = documentFields.get((int) (edit % documentFields.size()));
+        SyntheticNewsletter.fillField(document.getFormat(), field, "edit " + (edit & 1));
+        return document.buildHTML();
+    }
+
+    /**
+     * The document did not change since the last build
+     */
+    @Benchmark
+    public String buildHTMLUnchanged() {
+        return document.buildHTML();
+    }
+}
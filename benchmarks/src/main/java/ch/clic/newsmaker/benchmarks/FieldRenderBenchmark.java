@@ -0,0 +1,77 @@
+package ch.clic.newsmaker.benchmarks;
+
+import ch.clic.newsmaker.Format;
+import ch.clic.newsmaker.NewsFieldBean;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Render the HTML of a single field, with and without the per-language cache of <code>NewsFieldBean</code>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FieldRenderBenchmark {
+
+    @Param({"2"})
+    public int languages;
+
+    @Param({"8", "32"})
+    public int tags;
+
+    @Param({"1024", "16384"})
+    public int templateSize;
+
+    private Path folder;
+    private NewsFieldBean field;
+    private Format.Tag editedTag; // a language-constant tag, changed before each render
+    private String language;
+    private long edits;
+
+    @Setup
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("newsmaker-bench");
+        SyntheticNewsletter.writeFormat(folder, languages, tags, templateSize);
+        Format format = Format.fromFolder(folder);
+
+        field = SyntheticNewsletter.fields(SyntheticNewsletter.createDocument(format, 1)).get(0);
+        editedTag = format.presets.get(0).parameters().keySet().stream()
+                .filter(tag -> !tag.isLanguageVariant())
+                .findFirst().orElseThrow();
+        language = format.languages.get(0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticNewsletter.delete(folder);
+    }
+
+    @Benchmark
+    public String getHTMLCached() {
+        return field.getHTML(language);
+    }
+
+    @Benchmark
+    public String getHTMLAfterEdit() {
+        field.setPropertyValue(editedTag, (edits++ & 1) == 0 ? "even edit" : "odd edit");
+        return field.getHTML(language);
+    }
+}
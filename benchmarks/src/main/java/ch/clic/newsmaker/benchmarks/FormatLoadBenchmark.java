@@ -0,0 +1,59 @@
+package ch.clic.newsmaker.benchmarks;
+
+import ch.clic.newsmaker.Format;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load a format from its folder: the config.json file, the base and the template files
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatLoadBenchmark {
+
+    @Param({"2", "4"})
+    public int languages;
+
+    @Param({"8", "32"})
+    public int tags;
+
+    @Param({"1024", "65536"})
+    public int templateSize;
+
+    private Path folder;
+
+    @Setup
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("newsmaker-bench");
+        SyntheticNewsletter.writeFormat(folder, languages, tags, templateSize);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticNewsletter.delete(folder);
+    }
+
+    @Benchmark
+    public Format fromFolder() throws IOException {
+        return Format.fromFolder(folder);
+    }
+}
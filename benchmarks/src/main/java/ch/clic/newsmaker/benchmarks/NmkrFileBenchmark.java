@@ -0,0 +1,139 @@
+package ch.clic.newsmaker.benchmarks;
+
+import ch.clic.newsmaker.Format;
+import ch.clic.newsmaker.NewsDocument;
+import ch.clic.newsmaker.NmkrBinaryFile;
+import ch.clic.newsmaker.NmkrFile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Save and load .nmkr documents, in memory to measure the encoding and on disk to include the atomic write, in json
+ * and in the binary encoding
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NmkrFileBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int fields;
+
+    @Param({"2"})
+    public int languages;
+
+    @Param({"8"})
+    public int tags;
+
+    @Param({"1024"})
+    public int templateSize;
+
+    private Path folder;
+    private Path file;
+    private Format format;
+    private NewsDocument document;
+    private NewsDocument loadedDocument; // the document in which the files are loaded
+    private byte[] content; // the document written as json
+    private Path binaryFile;
+    private byte[] binaryContent; // the document written in the binary encoding
+
+    @Setup
+    public void setup() throws IOException {
+        folder = Files.createTempDirectory("newsmaker-bench");
+        SyntheticNewsletter.writeFormat(folder, languages, tags, templateSize);
+        format = Format.fromFolder(folder);
+
+        document = SyntheticNewsletter.createDocument(format, fields);
+        loadedDocument = new NewsDocument(format);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        NmkrFile.write(document.getFieldSectionMap(), format.languages, out);
+        content = out.toByteArray();
+
+        out.reset();
+        NmkrBinaryFile.write(NmkrFile.snapshots(document.getFieldSectionMap()), format.languages, out);
+        binaryContent = out.toByteArray();
+
+        file = folder.resolve("document.nmkr");
+        document.save(file);
+        binaryFile = folder.resolve("document-binary.nmkr");
+        document.save(binaryFile, NmkrFile.Encoding.BINARY);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        SyntheticNewsletter.delete(folder);
+    }
+
+    @Benchmark
+    public void writeStream() throws IOException {
+        NmkrFile.write(document.getFieldSectionMap(), format.languages, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public NewsDocument readStream() throws IOException {
+        loadedDocument.clear();
+        NmkrFile.read(new ByteArrayInputStream(content), loadedDocument::createField);
+        return loadedDocument;
+    }
+
+    @Benchmark
+    public void save() throws IOException {
+        document.save(file);
+    }
+
+    @Benchmark
+    public NewsDocument load() throws IOException {
+        loadedDocument.open(file);
+        return loadedDocument;
+    }
+
+    @Benchmark
+    public void writeBinaryStream() throws IOException {
+        NmkrBinaryFile.write(NmkrFile.snapshots(document.getFieldSectionMap()), format.languages, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public NewsDocument readBinaryStream() throws IOException {
+        loadedDocument.clear();
+        NmkrBinaryFile.open(binaryContent).readAll(loadedDocument::createField);
+        return loadedDocument;
+    }
+
+    @Benchmark
+    public NmkrBinaryFile openBinaryIndex() throws IOException {
+        return NmkrBinaryFile.open(binaryContent);
+    }
+
+    @Benchmark
+    public void saveBinary() throws IOException {
+        document.save(binaryFile, NmkrFile.Encoding.BINARY);
+    }
+
+    @Benchmark
+    public NewsDocument loadBinary() throws IOException {
+        loadedDocument.open(binaryFile);
+        return loadedDocument;
+    }
+}
@@ -0,0 +1,169 @@
+package ch.clic.newsmaker.benchmarks;
+
+import ch.clic.newsmaker.Format;
+import ch.clic.newsmaker.NewsDocument;
+import ch.clic.newsmaker.NewsFieldBean;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Generate synthetic formats and documents of a given size for the benchmarks.
+ * <p>
+ * A synthetic format has one preset per section. Its template has <code>tags</code> slots, half of them
+ * language-constant and half language-variant, padded with HTML comments up to <code>templateSize</code> characters.
+ */
+final class SyntheticNewsletter {
+
+    static final String[] SECTIONS = {"NEWS", "COMMISSIONS", "EVENTS"};
+    private static final String CONFIG_FILE_NAME = "config.json";
+    private static final String BASE_FILE_NAME = "base.html";
+    private static final String DEFAULT_TEMPLATE_FILE_NAME = "default_news_template.html";
+
+    private SyntheticNewsletter() {}
+
+    /**
+     * Write a synthetic format in a folder
+     *
+     * @param folder the folder of the format, created if needed
+     * @param languages the number of languages
+     * @param tags the number of tags of the template
+     * @param templateSize the minimum number of characters of the template
+     * @throws IOException if a file could not be written
+     */
+    static void writeFormat(Path folder, int languages, int tags, int templateSize) throws IOException {
+        Files.createDirectories(folder);
+        Files.writeString(folder.resolve(DEFAULT_TEMPLATE_FILE_NAME), template(tags, templateSize));
+        Files.writeString(folder.resolve(BASE_FILE_NAME), base(languages));
+
+        StringBuilder config = new StringBuilder("{\n  \"languages\": [");
+        for (int l = 0; l < languages; l++) {
+            config.append(l == 0 ? "" : ", ").append('"').append(language(l)).append('"');
+        }
+        config.append("],\n  \"presets\": [\n");
+        for (int s = 0; s < SECTIONS.length; s++) {
+            config.append(s == 0 ? "" : ",\n").append("    {\n")
+                    .append("      \"sectionTag\": \"").append(SECTIONS[s]).append("\",\n")
+                    .append("      \"name\": \"").append(s == 0 ? "default" : SECTIONS[s].toLowerCase()).append("\",\n")
+                    .append("      \"templateFile\": \"").append(DEFAULT_TEMPLATE_FILE_NAME).append("\",\n")
+                    .append("      \"parameters\": {\n");
+            for (int t = 0; t < tags; t++) {
+                config.append(t == 0 ? "" : ",\n").append("        \"").append(tag(t)).append("\": ");
+                if (isLanguageVariant(t)) {
+                    config.append('[');
+                    for (int l = 0; l < languages; l++) {
+                        config.append(l == 0 ? "" : ", ").append("\"value ").append(t).append(' ').append(language(l)).append('"');
+                    }
+                    config.append(']');
+                } else {
+                    config.append("\"value ").append(t).append('"');
+                }
+            }
+            config.append("\n      }\n    }");
+        }
+        config.append("\n  ]\n}\n");
+        Files.writeString(folder.resolve(CONFIG_FILE_NAME), config);
+    }
+
+    /**
+     * Create a document with <code>fields</code> fields spread over the sections, each one with distinct values
+     *
+     * @param format the format of the document
+     * @param fields the number of fields
+     * @return the document
+     */
+    static NewsDocument createDocument(Format format, int fields) {
+        NewsDocument document = new NewsDocument(format);
+        for (int f = 0; f < fields; f++) {
+            Format.Preset preset = format.presets.get(f % format.presets.size());
+            NewsFieldBean field = document.createField(preset.sectionTag());
+            field.updateWithPreset(preset);
+            fillField(format, field, "field " + f);
+        }
+        return document;
+    }
+
+    /**
+     * Set a new value to every property of a field
+     *
+     * @param format the format of the field
+     * @param field the field
+     * @param prefix written in front of every value
+     */
+    static void fillField(Format format, NewsFieldBean field, String prefix) {
+        for (Format.Tag tag : format.presets.get(0).parameters().keySet()) {
+            if (tag.isLanguageVariant()) {
+                for (String language : format.languages) {
+                    field.setPropertyValue(tag, language, prefix + ' ' + tag.name() + ' ' + language);
+                }
+            } else {
+                field.setPropertyValue(tag, prefix + ' ' + tag.name());
+            }
+        }
+    }
+
+    /**
+     * Return all the fields of a document
+     *
+     * @param document the document
+     * @return the fields, section by section
+     */
+    static List<NewsFieldBean> fields(NewsDocument document) {
+        List<NewsFieldBean> fields = new ArrayList<>();
+        document.getFieldSectionMap().values().forEach(fields::addAll);
+        return fields;
+    }
+
+    /**
+     * Delete a folder and its content
+     *
+     * @param folder the folder
+     * @throws IOException if a file could not be deleted
+     */
+    static void delete(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.walk(folder)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static String template(int tags, int templateSize) {
+        StringBuilder template = new StringBuilder("<div class=\"news\">\n");
+        for (int t = 0; t < tags; t++) {
+            template.append("    <p class=\"tag-").append(t).append("\">@").append(tag(t)).append("</p>\n");
+        }
+        while (template.length() < templateSize) {
+            template.append("    <!-- padding of the template, without any tag -->\n");
+        }
+        return template.append("</div>\n").toString();
+    }
+
+    private static String base(int languages) {
+        StringBuilder base = new StringBuilder("<html>\n<body>\n");
+        for (int l = 0; l < languages; l++) {
+            base.append("    <h1>").append(language(l)).append("</h1>\n");
+            for (String section : SECTIONS) {
+                base.append("    <div class=\"section\">\n        @").append(section).append('#').append(language(l)).append("\n    </div>\n");
+            }
+        }
+        return base.append("</body>\n</html>\n").toString();
+    }
+
+    private static String language(int index) {
+        return "LANGUAGE_" + index;
+    }
+
+    private static String tag(int index) {
+        return "TAG_" + index;
+    }
+
+    private static boolean isLanguageVariant(int index) {
+        return index % 2 == 1;
+    }
+}
@@ -0,0 +1,538 @@
+package ch.clic.newsmaker;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.channels.Channels;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A full-text index of a folder of .nmkr files, to find a field of an old newsletter without opening each file.
+ * <p>
+ * Every value of every field is split in words, without case nor accents, and each word points to the fields using
+ * it (an inverted index), with the language of the value or none for a language-constant value. The index is kept in
+ * a file and updated incrementally: only the .nmkr files whose modification time or size changed since the last
+ * update are read again. The fields of a file read again are added under a new id and its old id is marked deleted,
+ * the index is compacted once half of its files are deleted.
+ * <p>
+ * The preset of a field is not saved in .nmkr files, it is found from the template of the field.
+ */
+public final class ArchiveIndex {
+
+    /**
+     * A field found in the archive
+     *
+     * @param file the .nmkr file
+     * @param section the section of the field
+     * @param preset the name of the preset whose template the field uses, empty if none
+     * @param field the index of the field in the file, in the order of the file
+     * @param title a short text of the field
+     * @param modified the modification time of the file when it was indexed, in milliseconds
+     * @param size the size of the file when it was indexed
+     */
+    public record Hit(Path file, String section, String preset, int field, String title, long modified, long size) {
+
+        /**
+         * @return true if the file did not change since it was indexed, so the field is still at its index
+         * @throws IOException if the file could not be read, it was removed for example
+         */
+        public boolean isCurrent() throws IOException {
+            BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+            return attributes.lastModifiedTime().toMillis() == modified && attributes.size() == size;
+        }
+
+        @Override
+        public String toString() {
+            return file.getFileName() + " - " + section + (preset.isEmpty() ? "" : " - " + preset) + ": " + title;
+        }
+    }
+
+    private static final System.Logger LOGGER = System.getLogger(ArchiveIndex.class.getName());
+    private static final int MAGIC = 0x4E4D4931; // "NMI1"
+    private static final int TITLE_LENGTH = 120; // the characters of the title kept in the index
+    private static final int MAX_WORD_LENGTH = 64; // longer words are data, such as encoded images, and are not indexed
+    private static final Pattern MARKUP = Pattern.compile("<[^>]*>|&[a-zA-Z#0-9]+;");
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private record IndexedField(String section, String preset, String title) {}
+
+    private static final class IndexedFile {
+        private final String path; // relative to the folder of the archive
+        private final long modified;
+        private final long size;
+        private final List<IndexedField> fields;
+        private boolean deleted;
+
+        private IndexedFile(String path, long modified, long size, List<IndexedField> fields) {
+            this.path = path;
+            this.modified = modified;
+            this.size = size;
+            this.fields = fields;
+        }
+    }
+
+    /**
+     * The fields using a word, as (file, field, language) triples. The language is 0 for a language-constant value,
+     * else the id of the language plus one.
+     */
+    private static final class Postings {
+        private int[] triples = new int[3 * 4];
+        private int size; // the number of triples
+
+        void add(int file, int field, int language) {
+            if (3 * size == triples.length) triples = Arrays.copyOf(triples, triples.length * 2);
+            triples[3 * size] = file;
+            triples[3 * size + 1] = field;
+            triples[3 * size + 2] = language;
+            size++;
+        }
+    }
+
+    /**
+     * A file read outside the lock, before it is added to the index
+     */
+    private record ReadFile(String path, long modified, long size, List<IndexedField> fields, List<String> languages,
+                            Map<String, Set<Long>> words) {} // the field and the language of each word, see key
+
+    private final Path folder;
+    private final Path indexFile;
+    private final List<IndexedFile> files = new ArrayList<>(); // by id
+    private final Map<String, Integer> fileIds = new HashMap<>(); // the id of each file not deleted, by path
+    private final List<String> languages = new ArrayList<>(); // by id minus one
+    private final TreeMap<String, Postings> words = new TreeMap<>(); // sorted to find the words starting with a prefix
+    private int deletedFiles;
+    private List<Path> unreadFiles = List.of(); // the files which could not be read by the last update
+    private final Object updating = new Object(); // only one update at a time
+
+    private ArchiveIndex(Path folder, Path indexFile) {
+        this.folder = folder.toAbsolutePath().normalize();
+        this.indexFile = indexFile;
+    }
+
+    /**
+     * Open the index of an archive, empty if it was never saved or belongs to another folder
+     *
+     * @param folder the folder of the .nmkr files
+     * @param indexFile the file where the index is saved
+     * @return the index, call <code>update</code> to index the changes of the folder
+     */
+    public static ArchiveIndex open(Path folder, Path indexFile) {
+        ArchiveIndex index = new ArchiveIndex(folder, indexFile);
+        try {
+            index.load();
+        } catch (NoSuchFileException e) {
+            // never indexed
+        } catch (IOException e) {
+            // not shown to the user: the next update indexes the whole folder again
+            LOGGER.log(System.Logger.Level.INFO, "The archive index " + indexFile + " is rebuilt", e);
+            index.clear();
+        }
+        return index;
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    /**
+     * Index the .nmkr files added or changed since the last update and forget the removed ones, then save the index
+     *
+     * @param format used to read the files and to find the presets of the fields
+     * @return the number of files read
+     * @throws IOException if the folder could not be listed or the index could not be saved, the files which could not
+     *                     be read are skipped, see <code>getUnreadFiles</code>
+     */
+    public int update(Format format) throws IOException {
+        synchronized (updating) {
+            Map<String, long[]> known = new HashMap<>(); // the modification time and size of the indexed files
+            synchronized (this) {
+                fileIds.forEach((path, id) -> known.put(path, new long[]{files.get(id).modified, files.get(id).size}));
+            }
+
+            Set<String> present = new HashSet<>();
+            List<ReadFile> read = new ArrayList<>();
+            List<Path> unread = new ArrayList<>();
+            try (Stream<Path> walk = Files.walk(folder)) {
+                for (Path file : (Iterable<Path>) walk::iterator) {
+                    if (!file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".nmkr")) continue;
+                    BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                    if (!attributes.isRegularFile()) continue;
+
+                    String path = folder.relativize(file.toAbsolutePath().normalize()).toString();
+                    present.add(path);
+                    long[] indexed = known.get(path);
+                    long modified = attributes.lastModifiedTime().toMillis();
+                    if (indexed != null && indexed[0] == modified && indexed[1] == attributes.size()) continue;
+
+                    try {
+                        read.add(read(file, path, modified, attributes.size(), format));
+                    } catch (IOException e) {
+                        LOGGER.log(System.Logger.Level.WARNING, "The file " + file + " could not be indexed", e);
+                        unread.add(file);
+                    }
+                }
+            }
+
+            synchronized (this) {
+                for (String path : known.keySet()) {
+                    if (!present.contains(path)) delete(path);
+                }
+                read.forEach(this::add);
+                if (deletedFiles > files.size() / 2) compact();
+                unreadFiles = List.copyOf(unread);
+                save();
+            }
+            return read.size();
+        }
+    }
+
+    /**
+     * Find the fields containing all the words of a query. The last word also matches the longer words it starts, so
+     * the query can be searched while it is typed.
+     *
+     * @param query the words to find
+     * @param language only the values of this language and the language-constant ones are searched, null for all
+     * @param section only the fields of this section, null for all
+     * @param preset only the fields of this preset, null for all
+     * @param limit the maximum number of hits
+     * @return the fields found, the newest files first
+     */
+    public synchronized List<Hit> search(String query, String language, String section, String preset, int limit) {
+        List<String> queryWords = new ArrayList<>();
+        tokenize(query, queryWords::add);
+        if (queryWords.isEmpty()) return List.of();
+
+        int languageId = language == null ? -1 : languages.indexOf(language) + 1;
+        if (language != null && languageId == 0) languageId = Integer.MAX_VALUE; // only the language-constant values
+
+        Set<Long> matching = null; // the fields containing all the words so far, see key
+        for (int i = 0; i < queryWords.size(); i++) {
+            String word = queryWords.get(i);
+            Map<String, Postings> postings = i == queryWords.size() - 1
+                    ? words.subMap(word, word + Character.MAX_VALUE)
+                    : words.containsKey(word) ? Map.of(word, words.get(word)) : Map.of();
+
+            Set<Long> fields = new HashSet<>();
+            for (Postings p : postings.values()) {
+                for (int t = 0; t < p.size; t++) {
+                    int file = p.triples[3 * t];
+                    int fieldLanguage = p.triples[3 * t + 2];
+                    if (files.get(file).deleted) continue;
+                    if (languageId >= 0 && fieldLanguage != 0 && fieldLanguage != languageId) continue;
+                    long key = key(file, p.triples[3 * t + 1]);
+                    if (matching == null || matching.contains(key)) fields.add(key);
+                }
+            }
+            matching = fields;
+            if (matching.isEmpty()) return List.of();
+        }
+
+        List<Long> sorted = new ArrayList<>(matching);
+        sorted.sort(Comparator.<Long>comparingLong(key -> -files.get((int) (key >>> 32)).modified)
+                .thenComparing(key -> files.get((int) (key >>> 32)).path)
+                .thenComparingInt(key -> (int) (long) key));
+
+        List<Hit> hits = new ArrayList<>();
+        for (long key : sorted) {
+            IndexedFile file = files.get((int) (key >>> 32));
+            IndexedField field = file.fields.get((int) key);
+            if (section != null && !section.equals(field.section())) continue;
+            if (preset != null && !preset.equals(field.preset())) continue;
+            hits.add(new Hit(folder.resolve(file.path), field.section(), field.preset(), (int) key, field.title(),
+                    file.modified, file.size));
+            if (hits.size() == limit) break;
+        }
+        return hits;
+    }
+
+    /**
+     * @return the .nmkr files which could not be read by the last update, they are not in the index
+     */
+    public synchronized List<Path> getUnreadFiles() {
+        return unreadFiles;
+    }
+
+    /**
+     * @return the languages of the indexed values
+     */
+    public synchronized List<String> getLanguages() {
+        return List.copyOf(languages);
+    }
+
+    /**
+     * @return the sections of the indexed fields, sorted
+     */
+    public synchronized List<String> getSections() {
+        Set<String> sections = new TreeSet<>();
+        liveFields(field -> sections.add(field.section()));
+        return List.copyOf(sections);
+    }
+
+    /**
+     * @return the presets of the indexed fields, sorted
+     */
+    public synchronized List<String> getPresets() {
+        Set<String> presets = new TreeSet<>();
+        liveFields(field -> {
+            if (!field.preset().isEmpty()) presets.add(field.preset());
+        });
+        return List.copyOf(presets);
+    }
+
+    /**
+     * @return the number of fields indexed
+     */
+    public synchronized int fieldCount() {
+        int[] count = new int[1];
+        liveFields(field -> count[0]++);
+        return count[0];
+    }
+
+    private void liveFields(Consumer<IndexedField> action) {
+        for (IndexedFile file : files) {
+            if (!file.deleted) file.fields.forEach(action);
+        }
+    }
+
+    /**
+     * Read the fields of a .nmkr file and split their values in words
+     */
+    private static ReadFile read(Path file, String path, long modified, long size, Format format) throws IOException {
+        List<FieldSnapshot> snapshots = NmkrFile.readSnapshots(file, format.getTemplates());
+
+        List<IndexedField> fields = new ArrayList<>();
+        Map<String, Set<Long>> fieldWords = new HashMap<>();
+        for (int i = 0; i < snapshots.size(); i++) {
+            FieldSnapshot snapshot = snapshots.get(i);
+            for (int language = -1; language < format.languages.size(); language++) {
+                String name = language < 0 ? null : format.languages.get(language);
+                for (Format.Tag tag : snapshot.tagsWithValue(snapshot.row(name))) {
+                    String value = snapshot.value(tag, name);
+                    if (value.isBlank()) continue;
+                    long key = key(i, language + 1);
+                    tokenize(value, word -> fieldWords.computeIfAbsent(word, w -> new HashSet<>()).add(key));
+                }
+            }
+            fields.add(new IndexedField(snapshot.getSection(), presetOf(snapshot, format), title(snapshot, format)));
+        }
+        return new ReadFile(path, modified, size, fields, format.languages, fieldWords);
+    }
+
+    /**
+     * @return the name of the first preset with the template of the field, empty if the template is of no preset
+     */
+    private static String presetOf(FieldSnapshot snapshot, Format format) {
+        String template = snapshot.getTemplate().getSource();
+        for (Format.Preset preset : format.presets) {
+            if (preset.template() != null && preset.template().getSource().equals(template)) return preset.name();
+        }
+        return "";
+    }
+
+    /**
+     * @return the first title of the field in the first language, else its first value, as short text
+     */
+    private static String title(FieldSnapshot snapshot, Format format) {
+        String title = null;
+        List<String> languages = new ArrayList<>(format.languages.subList(0, Math.min(1, format.languages.size())));
+        languages.add(null); // the language-constant values
+        search:
+        for (String language : languages) {
+            for (Format.Tag tag : snapshot.tagsWithValue(snapshot.row(language))) {
+                String value = snapshot.value(tag, language);
+                if (value.isBlank()) continue;
+                if (tag.name().contains("TITLE")) {
+                    title = value;
+                    break search;
+                }
+                if (title == null) title = value;
+            }
+        }
+        if (title == null) return "";
+
+        String text = MARKUP.matcher(title).replaceAll(" ").replaceAll("\\s+", " ").strip();
+        return text.length() <= TITLE_LENGTH ? text : text.substring(0, TITLE_LENGTH) + "...";
+    }
+
+    /**
+     * Split a text in words, in lower case and without accents, ignoring the HTML tags and entities and the words of
+     * one letter
+     */
+    static void tokenize(String text, Consumer<String> words) {
+        String plain = MARKUP.matcher(text).replaceAll(" ");
+        String normalized = ACCENTS.matcher(Normalizer.normalize(plain, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        for (String word : SEPARATORS.split(normalized)) {
+            if (word.length() >= 2 && word.length() <= MAX_WORD_LENGTH) words.accept(word);
+        }
+    }
+
+    private static long key(int file, int field) {
+        return ((long) file << 32) | field;
+    }
+
+    private void add(ReadFile read) {
+        delete(read.path());
+
+        int id = files.size();
+        files.add(new IndexedFile(read.path(), read.modified(), read.size(), read.fields()));
+        fileIds.put(read.path(), id);
+
+        int[] languageIds = new int[read.languages().size() + 1]; // 0 stays the language-constant values
+        for (int i = 0; i < read.languages().size(); i++) {
+            String language = read.languages().get(i);
+            if (!languages.contains(language)) languages.add(language);
+            languageIds[i + 1] = languages.indexOf(language) + 1;
+        }
+
+        read.words().forEach((word, keys) -> {
+            Postings postings = words.computeIfAbsent(word, w -> new Postings());
+            for (long key : keys) postings.add(id, (int) (key >>> 32), languageIds[(int) key]);
+        });
+    }
+
+    private void delete(String path) {
+        Integer id = fileIds.remove(path);
+        if (id != null) {
+            files.get(id).deleted = true;
+            deletedFiles++;
+        }
+    }
+
+    /**
+     * Drop the deleted files and their words, the other files get new ids
+     */
+    private void compact() {
+        int[] newIds = new int[files.size()];
+        List<IndexedFile> kept = new ArrayList<>();
+        for (int id = 0; id < files.size(); id++) {
+            IndexedFile file = files.get(id);
+            newIds[id] = file.deleted ? -1 : kept.size();
+            if (!file.deleted) kept.add(file);
+        }
+
+        words.values().removeIf(postings -> {
+            int size = 0;
+            for (int t = 0; t < postings.size; t++) {
+                int newId = newIds[postings.triples[3 * t]];
+                if (newId < 0) continue;
+                postings.triples[3 * size] = newId;
+                postings.triples[3 * size + 1] = postings.triples[3 * t + 1];
+                postings.triples[3 * size + 2] = postings.triples[3 * t + 2];
+                size++;
+            }
+            postings.size = size;
+            return size == 0;
+        });
+
+        files.clear();
+        files.addAll(kept);
+        fileIds.clear();
+        for (int id = 0; id < files.size(); id++) fileIds.put(files.get(id).path, id);
+        deletedFiles = 0;
+    }
+
+    private void clear() {
+        files.clear();
+        fileIds.clear();
+        languages.clear();
+        words.clear();
+        deletedFiles = 0;
+    }
+
+    private void save() throws IOException {
+        Files.createDirectories(indexFile.toAbsolutePath().getParent());
+        FileManager.writeAtomically(indexFile, channel -> {
+            // flushed but not closed, writeAtomically forces and closes the channel
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeUTF(folder.toString());
+
+            out.writeInt(languages.size());
+            for (String language : languages) out.writeUTF(language);
+
+            out.writeInt(files.size());
+            for (IndexedFile file : files) {
+                out.writeUTF(file.path);
+                out.writeLong(file.modified);
+                out.writeLong(file.size);
+                out.writeBoolean(file.deleted);
+                out.writeInt(file.fields.size());
+                for (IndexedField field : file.fields) {
+                    out.writeUTF(field.section());
+                    out.writeUTF(field.preset());
+                    out.writeUTF(field.title());
+                }
+            }
+
+            out.writeInt(words.size());
+            for (Map.Entry<String, Postings> entry : words.entrySet()) {
+                Postings postings = entry.getValue();
+                out.writeUTF(entry.getKey());
+                out.writeInt(postings.size);
+                for (int i = 0; i < 3 * postings.size; i++) out.writeInt(postings.triples[i]);
+            }
+            out.flush();
+        });
+    }
+
+    private void load() throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) throw new IOException("not an archive index");
+            if (!in.readUTF().equals(folder.toString())) throw new IOException("the index is of another folder");
+
+            int languageCount = in.readInt();
+            for (int i = 0; i < languageCount; i++) languages.add(in.readUTF());
+
+            int fileCount = in.readInt();
+            for (int id = 0; id < fileCount; id++) {
+                String path = in.readUTF();
+                long modified = in.readLong();
+                long size = in.readLong();
+                boolean deleted = in.readBoolean();
+                int fieldCount = in.readInt();
+                List<IndexedField> fields = new ArrayList<>(fieldCount);
+                for (int i = 0; i < fieldCount; i++) fields.add(new IndexedField(in.readUTF(), in.readUTF(), in.readUTF()));
+
+                IndexedFile file = new IndexedFile(path, modified, size, fields);
+                file.deleted = deleted;
+                files.add(file);
+                if (deleted) {
+                    deletedFiles++;
+                } else {
+                    fileIds.put(path, id);
+                }
+            }
+
+            int wordCount = in.readInt();
+            for (int i = 0; i < wordCount; i++) {
+                String word = in.readUTF();
+                Postings postings = new Postings();
+                postings.size = in.readInt();
+                postings.triples = new int[Math.max(3, 3 * postings.size)];
+                for (int t = 0; t < 3 * postings.size; t++) postings.triples[t] = in.readInt();
+                words.put(word, postings);
+            }
+        }
+    }
+}
@@ -0,0 +1,449 @@
+package ch.clic.newsmaker;
+
+import javafx.beans.InvalidationListener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Autosave of a document in a write-ahead journal.
+ * <p>
+ * Each edit is appended to the journal as a small record (field id, tag, language, new value) by a background thread,
+ * instead of writing the whole document again. Every <code>COMPACT_RECORDS</code> records, and each time the document
+ * is saved or opened, the document is written in a .nmkr snapshot and the journal starts again empty. If the
+ * application is killed, the snapshot and the journal are replayed at the next start to recover the unsaved work.
+ * <p>
+ * The journal names the generation of the snapshot it applies to, so a compaction interrupted at any point still
+ * leaves a snapshot and a journal that match. A record cut by a crash is detected by its checksum and ignored.
+ * <p>
+ * All methods must be called on the thread editing the document.
+ */
+public final class AutosaveJournal implements NewsDocument.Listener {
+
+    private static final System.Logger LOGGER = System.getLogger(AutosaveJournal.class.getName());
+    private static final String JOURNAL_FILE_NAME = "autosave.journal";
+    private static final String SNAPSHOT_FILE_NAME = "autosave-%d.nmkr";
+    private static final int MAGIC = 0x4E4D4A31; // "NMJ1"
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + 1;
+    private static final int COMPACT_RECORDS = 1000; // the number of records after which the journal is compacted
+
+    // the kinds of records
+    private static final byte ADD = 1;
+    private static final byte REMOVE = 2;
+    private static final byte MOVE = 3;
+    private static final byte SECTION = 4;
+    private static final byte TEMPLATE = 5;
+    private static final byte VALUE = 6;
+
+    /**
+     * A field of the document with the snapshot last written in the journal
+     */
+    private static final class TrackedField {
+        int id;
+        FieldSnapshot snapshot;
+        InvalidationListener listener;
+    }
+
+    private final Path folder;
+    private final NewsDocument document;
+    private final Map<NewsFieldBean, TrackedField> fields = new IdentityHashMap<>();
+    private int nextId;
+    private int records; // the records appended since the last compaction
+    private long generation; // the generation of the last snapshot
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "autosave");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private FileChannel journal; // only used by the writer thread
+
+    private AutosaveJournal(NewsDocument document, Path folder, long generation) {
+        this.document = document;
+        this.folder = folder;
+        this.generation = generation;
+    }
+
+    /**
+     * Start the autosave of a document. The document is written in a new snapshot right away, replacing the previous
+     * autosave of the folder.
+     *
+     * @param document the document to save
+     * @param folder the folder of the journal and its snapshots
+     * @return the journal
+     * @throws IOException if the folder could not be created
+     */
+    public static AutosaveJournal start(NewsDocument document, Path folder) throws IOException {
+        Files.createDirectories(folder);
+        Header previous = readHeader(folder);
+
+        AutosaveJournal autosave = new AutosaveJournal(document, folder, previous == null ? 0 : previous.generation());
+        document.addListener(autosave);
+        autosave.compact();
+        return autosave;
+    }
+
+    /**
+     * Return true if the folder holds work that was not saved, because the application was killed while editing
+     *
+     * @param folder the folder of the journal
+     * @return true if there is work to recover, else false
+     */
+    public static boolean hasRecoverableWork(Path folder) {
+        Header header = readHeader(folder);
+        if (header == null || !Files.exists(snapshotFile(folder, header.generation()))) return false;
+
+        try {
+            return header.unsaved() || Files.size(folder.resolve(JOURNAL_FILE_NAME)) > HEADER_SIZE;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Load the last snapshot in a document and replay the edits of the journal on it. The document is then marked as
+     * not saved.
+     *
+     * @param document the document, its fields are replaced
+     * @param folder the folder of the journal
+     * @throws IOException if the snapshot or the journal could not be read
+     */
+    public static void recover(NewsDocument document, Path folder) throws IOException {
+        Header header = readHeader(folder);
+        if (header == null) throw new IOException("no autosave journal in " + folder);
+
+        List<NewsFieldBean> ids = new ArrayList<>();
+        document.open(snapshotFile(folder, header.generation()), ids::add);
+
+        try (InputStream in = Files.newInputStream(folder.resolve(JOURNAL_FILE_NAME))) {
+            in.skipNBytes(HEADER_SIZE);
+            DataInputStream data = new DataInputStream(in);
+            byte[] payload;
+            while ((payload = readRecord(data)) != null) {
+                replay(document, ids, new DataInputStream(new ByteArrayInputStream(payload)));
+            }
+        }
+
+        document.markUnsaved();
+    }
+
+    /**
+     * Stop the autosave and delete the journal and its snapshots
+     */
+    public void discard() {
+        stop(true);
+    }
+
+    /**
+     * Stop the autosave and keep the journal and its snapshot, to recover the unsaved work at the next start
+     */
+    public void close() {
+        stop(false);
+    }
+
+    /**
+     * Write the pending records, then close the journal and delete it if asked
+     */
+    private void stop(boolean delete) {
+        document.removeListener(this);
+        untrackAll();
+        long lastGeneration = generation;
+        writer.execute(() -> {
+            try {
+                closeJournal();
+                if (delete) {
+                    Files.deleteIfExists(folder.resolve(JOURNAL_FILE_NAME));
+                    Files.deleteIfExists(snapshotFile(folder, lastGeneration));
+                }
+            } catch (IOException e) {
+                report(e);
+            }
+        });
+        writer.shutdown();
+        try {
+            writer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void fieldAdded(NewsFieldBean field) {
+        TrackedField tracked = track(field, nextId++, FieldSnapshot.empty(field.getSnapshot().getTags()));
+        append(record(ADD, tracked.id, out -> writeString(out, field.sectionProperty().get())));
+        fieldChanged(field);
+    }
+
+    @Override
+    public void fieldRemoved(NewsFieldBean field) {
+        TrackedField tracked = fields.remove(field);
+        if (tracked == null) return;
+        field.revisionProperty().removeListener(tracked.listener);
+        append(record(REMOVE, tracked.id, out -> {}));
+    }
+
+    @Override
+    public void fieldMoved(NewsFieldBean field, int delta) {
+        TrackedField tracked = fields.get(field);
+        if (tracked != null) append(record(MOVE, tracked.id, out -> out.writeInt(delta)));
+    }
+
+    @Override
+    public void documentReplaced() {
+        compact();
+    }
+
+    @Override
+    public void documentSaved() {
+        compact();
+    }
+
+    /**
+     * Append the differences between the last written snapshot of a field and its current snapshot
+     */
+    private void fieldChanged(NewsFieldBean field) {
+        TrackedField tracked = fields.get(field);
+        if (tracked == null) return;
+
+        FieldSnapshot current = field.getSnapshot();
+        current.diff(tracked.snapshot, new FieldSnapshot.Changes() {
+            @Override
+            public void sectionChanged(String section) {
+                append(record(SECTION, tracked.id, out -> writeString(out, section)));
+            }
+
+            @Override
+            public void templateChanged(CompiledTemplate template) {
+                append(record(TEMPLATE, tracked.id, out -> writeString(out, template.getSource())));
+            }
+
+            @Override
+            public void valueChanged(Format.Tag tag, String language, String value) {
+                append(record(VALUE, tracked.id, out -> {
+                    writeString(out, tag.name());
+                    out.writeBoolean(tag.isLanguageVariant());
+                    writeString(out, language);
+                    writeString(out, value);
+                }));
+            }
+        });
+        tracked.snapshot = current;
+
+        if (records >= COMPACT_RECORDS) compact();
+    }
+
+    /**
+     * Write the whole document in a new snapshot and start an empty journal. The fields are numbered again in the
+     * order of the snapshot.
+     */
+    private void compact() {
+        untrackAll();
+        nextId = 0;
+        records = 0;
+
+        Map<String, List<FieldSnapshot>> snapshots = NmkrFile.snapshots(document.getFieldSectionMap());
+        document.getFieldSectionMap().values().forEach(sectionFields ->
+                sectionFields.forEach(field -> track(field, nextId++, field.getSnapshot())));
+
+        List<String> languages = List.copyOf(document.getFormat().languages);
+        boolean unsaved = !document.hasNotChanged();
+        long previousGeneration = generation;
+        long newGeneration = ++generation;
+
+        writer.execute(() -> {
+            try {
+                NmkrBinaryFile.write(snapshots, languages, snapshotFile(folder, newGeneration));
+
+                // the journal names the new snapshot only once it is written
+                closeJournal();
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).putInt(MAGIC).putLong(newGeneration).put((byte) (unsaved ? 1 : 0)).flip();
+                FileManager.writeAtomically(folder.resolve(JOURNAL_FILE_NAME), channel -> channel.write(header));
+                journal = FileChannel.open(folder.resolve(JOURNAL_FILE_NAME), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+
+                Files.deleteIfExists(snapshotFile(folder, previousGeneration));
+            } catch (IOException e) {
+                report(e);
+            }
+        });
+    }
+
+    private TrackedField track(NewsFieldBean field, int id, FieldSnapshot snapshot) {
+        TrackedField tracked = new TrackedField();
+        tracked.id = id;
+        tracked.snapshot = snapshot;
+        tracked.listener = o -> fieldChanged(field);
+        field.revisionProperty().addListener(tracked.listener);
+        fields.put(field, tracked);
+        return tracked;
+    }
+
+    private void untrackAll() {
+        fields.forEach((field, tracked) -> field.revisionProperty().removeListener(tracked.listener));
+        fields.clear();
+    }
+
+    private void append(byte[] record) {
+        records++;
+        writer.execute(() -> {
+            if (journal == null) return; // the last compaction failed
+            try {
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining()) journal.write(buffer);
+            } catch (IOException e) {
+                report(e);
+            }
+        });
+    }
+
+    private void closeJournal() throws IOException {
+        if (journal != null) {
+            journal.close();
+            journal = null;
+        }
+    }
+
+    private static void report(IOException e) {
+        // not shown to the user: only the recovery after a crash is lost, the document can still be saved
+        LOGGER.log(System.Logger.Level.WARNING, "Autosave failed", e);
+    }
+
+    @FunctionalInterface
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * Encode a record: its length, the checksum of its content and its content
+     */
+    private static byte[] record(byte kind, int fieldId, RecordWriter content) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        try {
+            DataOutputStream out = new DataOutputStream(payload);
+            out.writeByte(kind);
+            out.writeInt(fieldId);
+            content.write(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // a ByteArrayOutputStream does not throw
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+        return ByteBuffer.allocate(2 * Integer.BYTES + payload.size())
+                .putInt(payload.size())
+                .putInt((int) crc.getValue())
+                .put(payload.toByteArray())
+                .array();
+    }
+
+    /**
+     * @return the content of the next record, or null at the end of the journal or at a record cut by a crash
+     */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        try {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length < 0) return null;
+
+            byte[] payload = in.readNBytes(length);
+            if (payload.length != length) return null;
+
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            return (int) crc.getValue() == checksum ? payload : null;
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private static void replay(NewsDocument document, List<NewsFieldBean> ids, DataInputStream in) throws IOException {
+        byte kind = in.readByte();
+        int id = in.readInt();
+
+        if (kind == ADD) {
+            NewsFieldBean field = document.createField(readString(in));
+            while (ids.size() <= id) ids.add(null);
+            ids.set(id, field);
+            return;
+        }
+
+        NewsFieldBean field = id < ids.size() ? ids.get(id) : null;
+        if (field == null) throw new IOException("the journal refers to an unknown field " + id);
+
+        switch (kind) {
+            case REMOVE -> {
+                document.removeField(field);
+                ids.set(id, null);
+            }
+            case MOVE -> document.moveField(field, in.readInt());
+            case SECTION -> field.setSection(readString(in));
+            case TEMPLATE -> field.setTemplate(readString(in));
+            case VALUE -> {
+                Format.Tag tag = field.getSnapshot().getTags().intern(readString(in), in.readBoolean());
+                String language = readString(in);
+                String value = readString(in);
+                if (tag.isLanguageVariant()) {
+                    field.setPropertyValue(tag, language, value);
+                } else {
+                    field.setPropertyValue(tag, value);
+                }
+            }
+            default -> throw new IOException("unknown record " + kind + " in the journal");
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        return length < 0 ? null : new String(in.readNBytes(length), StandardCharsets.UTF_8);
+    }
+
+    private record Header(long generation, boolean unsaved) {}
+
+    private static Header readHeader(Path folder) {
+        Path file = folder.resolve(JOURNAL_FILE_NAME);
+        if (!Files.exists(file)) return null;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining() && channel.read(header) >= 0) ;
+            if (header.hasRemaining()) return null;
+
+            header.flip();
+            if (header.getInt() != MAGIC) return null;
+            return new Header(header.getLong(), header.get() != 0);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static Path snapshotFile(Path folder, long generation) {
+        return folder.resolve(SNAPSHOT_FILE_NAME.formatted(generation));
+    }
+}
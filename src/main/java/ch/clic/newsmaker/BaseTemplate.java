@@ -0,0 +1,138 @@
+package ch.clic.newsmaker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The HTML base template parsed once into literal segments and <code>@SECTION#LANGUAGE</code> placeholders.
+ * <p>
+ * The document is assembled in a single pass: literals are copied as is and the HTML of each section is indented
+ * while it is written in place of its placeholder.
+ */
+public final class BaseTemplate {
+
+    /**
+     * Give the HTML of a section in a language while assembling the document
+     */
+    @FunctionalInterface
+    public interface SectionSource {
+
+        /**
+         * @param section the section name, as written in the placeholder
+         * @param language the language name, as written in the placeholder
+         * @return the HTML of the section, or <code>null</code> to keep the placeholder as is in the output
+         */
+        CharSequence sectionHTML(String section, String language);
+    }
+
+    /**
+     * A <code>@SECTION#LANGUAGE</code> placeholder of the base template
+     *
+     * @param section the section name
+     * @param language the language name
+     */
+    public record Placeholder(String section, String language) {
+
+        @Override
+        public String toString() {
+            return '@' + section + '#' + language;
+        }
+    }
+
+    private final String source;
+    private final String[] literals; // there is always one more literal than placeholders
+    private final Placeholder[] placeholders;
+
+    private BaseTemplate(String source, String[] literals, Placeholder[] placeholders) {
+        this.source = source;
+        this.literals = literals;
+        this.placeholders = placeholders;
+    }
+
+    /**
+     * Find every <code>@SECTION#LANGUAGE</code> placeholder of the base template in one scan
+     *
+     * @param source the base template
+     * @return the compiled base template
+     */
+    public static BaseTemplate compile(String source) {
+        if (source == null) source = "";
+
+        List<String> literals = new ArrayList<>();
+        List<Placeholder> placeholders = new ArrayList<>();
+
+        int literalStart = 0;
+        int at = source.indexOf('@');
+        while (at >= 0) {
+            int hash = skipTagCharacters(source, at + 1);
+            int end = hash < source.length() && source.charAt(hash) == '#' ? skipTagCharacters(source, hash + 1) : hash;
+
+            if (hash > at + 1 && end > hash + 1) {
+                literals.add(source.substring(literalStart, at));
+                placeholders.add(new Placeholder(source.substring(at + 1, hash), source.substring(hash + 1, end)));
+                literalStart = end;
+            }
+            at = source.indexOf('@', Math.max(end, at + 1));
+        }
+        literals.add(source.substring(literalStart));
+
+        return new BaseTemplate(source, literals.toArray(String[]::new), placeholders.toArray(Placeholder[]::new));
+    }
+
+    private static int skipTagCharacters(String source, int from) {
+        while (from < source.length() && CompiledTemplate.isTagCharacter(source.charAt(from))) from++;
+        return from;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    public List<Placeholder> getPlaceholders() {
+        return List.of(placeholders);
+    }
+
+    /**
+     * Append the document to <code>out</code>, writing the HTML of each section in place of its placeholder.
+     * The HTML of the sections is indented like <code>String.indent(indent)</code> would do.
+     *
+     * @param out where to write the document
+     * @param sections gives the HTML of each section
+     * @param indent the number of spaces added in front of each line of a section
+     */
+    public void render(StringBuilder out, SectionSource sections, int indent) {
+        out.append(literals[0]);
+        for (int i = 0; i < placeholders.length; i++) {
+            CharSequence html = sections.sectionHTML(placeholders[i].section(), placeholders[i].language());
+            if (html != null) {
+                appendIndented(out, html, indent);
+            } else {
+                out.append('@').append(placeholders[i].section()).append('#').append(placeholders[i].language());
+            }
+            out.append(literals[i + 1]);
+        }
+    }
+
+    /**
+     * Append <code>text</code> to <code>out</code> with <code>indent</code> spaces in front of each line.
+     * Like <code>String.indent</code>, line terminators are normalized to <code>\n</code> and the last line is
+     * always terminated.
+     *
+     * @param out where to write
+     * @param text the text to indent
+     * @param indent the number of spaces added in front of each line
+     */
+    static void appendIndented(StringBuilder out, CharSequence text, int indent) {
+        int length = text.length();
+        int lineStart = 0;
+        while (lineStart < length) {
+            int lineEnd = lineStart;
+            while (lineEnd < length && text.charAt(lineEnd) != '\n' && text.charAt(lineEnd) != '\r') lineEnd++;
+
+            out.repeat(' ', indent).append(text, lineStart, lineEnd).append('\n');
+
+            if (lineEnd < length && text.charAt(lineEnd) == '\r' && lineEnd + 1 < length && text.charAt(lineEnd + 1) == '\n') lineEnd++;
+            lineStart = lineEnd + 1;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package ch.clic.newsmaker;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A field template parsed once into literal segments and tag slots.
+ * <p>
+ * A slot is written <code>@TAG_NAME</code> in the template. The name of a slot is the longest run of letters, digits
+ * and underscores following the <code>@</code>, so <code>@NEWS_DETAILS_URL</code> is never mistaken for a shorter tag
+ * like <code>@NEWS_DETAIL</code>. Rendering is a single pass appending literals and values to a
+ * <code>StringBuilder</code>.
+ */
+public final class CompiledTemplate {
+
+    /**
+     * Resolve the value of a slot while rendering
+     */
+    @FunctionalInterface
+    public interface TagResolver {
+
+        /**
+         * @param slot the slot to resolve
+         * @return the value of the slot, or <code>null</code> to keep the tag as is in the output
+         */
+        String resolve(Slot slot);
+    }
+
+    /**
+     * A tag slot of the template. Both the language-constant and language-variant tags are the canonical tags of the
+     * tag table of the template, so resolving a slot neither allocates nor hashes.
+     *
+     * @param invariantTag the language-constant tag with the slot name
+     * @param variantTag the language-variant tag with the slot name
+     */
+    public record Slot(Format.Tag invariantTag, Format.Tag variantTag) {
+
+        public String name() {
+            return invariantTag.name();
+        }
+    }
+
+    public static final CompiledTemplate EMPTY = new CompiledTemplate("", new String[]{""}, new Slot[0]);
+
+    private final String source;
+    private final String[] literals; // there is always one more literal than slots
+    private final Slot[] slots;
+
+    private CompiledTemplate(String source, String[] literals, Slot[] slots) {
+        this.source = source;
+        this.literals = literals;
+        this.slots = slots;
+    }
+
+    /**
+     * Parse a template into literal segments and tag slots, with the tags of its own tag table
+     *
+     * @param source the template
+     * @return the compiled template
+     */
+    public static CompiledTemplate compile(String source) {
+        return compile(source, new TagTable());
+    }
+
+    /**
+     * Parse a template into literal segments and tag slots
+     *
+     * @param source the template
+     * @param tags the tag table giving the canonical tags, the tags of the template are added to it
+     * @return the compiled template
+     */
+    public static CompiledTemplate compile(String source, TagTable tags) {
+        List<String> literals = new ArrayList<>();
+        List<Slot> slots = new ArrayList<>();
+
+        int literalStart = 0;
+        int at = source.indexOf('@');
+        while (at >= 0) {
+            int end = at + 1;
+            while (end < source.length() && isTagCharacter(source.charAt(end))) end++;
+
+            if (end > at + 1) {
+                String name = source.substring(at + 1, end);
+                literals.add(source.substring(literalStart, at));
+                slots.add(new Slot(tags.intern(name, false), tags.intern(name, true)));
+                literalStart = end;
+            }
+            at = source.indexOf('@', end);
+        }
+        literals.add(source.substring(literalStart));
+
+        return new CompiledTemplate(source, literals.toArray(String[]::new), slots.toArray(Slot[]::new));
+    }
+
+    static boolean isTagCharacter(char c) {
+        return c == '_' || Character.isLetterOrDigit(c);
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Append the template to <code>out</code>, replacing each slot by its resolved value
+     *
+     * @param out where to write
+     * @param resolver gives the value of each slot
+     */
+    public void render(StringBuilder out, TagResolver resolver) {
+        out.append(literals[0]);
+        for (int i = 0; i < slots.length; i++) {
+            String value = resolver.resolve(slots[i]);
+            if (value != null) {
+                out.append(value);
+            } else {
+                out.append(slots[i].invariantTag().placeholder());
+            }
+            out.append(literals[i + 1]);
+        }
+    }
+
+    /**
+     * Append the template to <code>out</code>, replacing each slot by the value of a field
+     *
+     * @param out where to write
+     * @param values the values of the field
+     * @param row the row of the language in <code>values</code>
+     */
+    public void render(StringBuilder out, FieldSnapshot values, int row) {
+        render(out, slot -> values.value(slot, row));
+    }
+}
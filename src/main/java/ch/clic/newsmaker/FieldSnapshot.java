@@ -0,0 +1,277 @@
+package ch.clic.newsmaker;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * The content of a field at a given time: its section, its template and the values of its tags.
+ * <p>
+ * A snapshot is immutable, so it can be rendered or saved on any thread while the field is edited. The values are
+ * stored in a flat array indexed by row and tag id: row 0 holds the language-constant values and row
+ * <code>l + 1</code> the values in the language of id <code>l</code>. A tag without value is <code>null</code>.
+ * <p>
+ * The snapshot also keeps the order in which its tags got their first value, so a field is saved with its tags in the
+ * order they were read or set, whatever their ids in the format.
+ */
+public final class FieldSnapshot {
+
+    public static final int CONSTANT_ROW = 0;
+
+    /**
+     * Receive the differences between two snapshots of a field
+     */
+    public interface Changes {
+
+        void sectionChanged(String section);
+
+        void templateChanged(CompiledTemplate template);
+
+        /**
+         * @param tag the tag
+         * @param language the language, or <code>null</code> for a language-constant tag
+         * @param value the new value, <code>null</code> if the value was removed
+         */
+        void valueChanged(Format.Tag tag, String language, String value);
+    }
+
+    private final TagTable tags;
+    private final String section;
+    private final CompiledTemplate template;
+    private final int width; // the number of tags of the table when the array was sized
+    private final String[] values;
+    private final int[] order; // the ids of the tags which had a value in some row, in the order of their first value
+
+    private FieldSnapshot(TagTable tags, String section, CompiledTemplate template, int width, String[] values, int[] order) {
+        this.tags = tags;
+        this.section = section;
+        this.template = template;
+        this.width = width;
+        this.values = values;
+        this.order = order;
+    }
+
+    /**
+     * @param tags the tag table of the format of the field
+     * @return a snapshot without section, template nor values
+     */
+    public static FieldSnapshot empty(TagTable tags) {
+        return new FieldSnapshot(tags, null, CompiledTemplate.EMPTY, 0, new String[0], new int[0]);
+    }
+
+    public TagTable getTags() {
+        return tags;
+    }
+
+    public String getSection() {
+        return section;
+    }
+
+    public CompiledTemplate getTemplate() {
+        return template;
+    }
+
+    /**
+     * @param language a language, or <code>null</code> for the language-constant values
+     * @return the row of the language, or -1 if the language is unknown
+     */
+    public int row(String language) {
+        if (language == null) return CONSTANT_ROW;
+        int id = tags.findLanguageId(language);
+        return id < 0 ? -1 : id + 1;
+    }
+
+    /**
+     * @param row the row of the value
+     * @param tagId the id of the tag
+     * @return the value, or <code>null</code> if the tag has no value in this row
+     */
+    public String value(int row, int tagId) {
+        if (row < 0 || tagId < 0 || tagId >= width) return null;
+        int index = row * width + tagId;
+        return index < values.length ? values[index] : null;
+    }
+
+    /**
+     * @param tag the tag
+     * @param language the language, or <code>null</code> for a language-constant tag
+     * @return the value, or <code>null</code> if the tag has no value in this language
+     */
+    public String value(Format.Tag tag, String language) {
+        return value(row(language), tags.findTagId(tag));
+    }
+
+    /**
+     * Return the value of a template slot. Language-constant values take precedence over language-variant ones with
+     * the same name.
+     *
+     * @param slot the slot
+     * @param row the row of the language
+     * @return the value, or <code>null</code> if the slot has no value
+     */
+    public String value(CompiledTemplate.Slot slot, int row) {
+        String value = value(CONSTANT_ROW, tags.findTagId(slot.invariantTag()));
+        if (value == null) value = value(row, tags.findTagId(slot.variantTag()));
+        return value;
+    }
+
+    /**
+     * @param row the row
+     * @return the tags with a value in this row, in the order they got their first value
+     */
+    public List<Format.Tag> tagsWithValue(int row) {
+        List<Format.Tag> result = new ArrayList<>();
+        for (int id : order) {
+            if (value(row, id) != null) result.add(tags.tag(id));
+        }
+        return result;
+    }
+
+    /**
+     * Return a snapshot with a new value, or this snapshot if the value did not change
+     *
+     * @param tag the tag
+     * @param language the language, or <code>null</code> for a language-constant tag
+     * @param value the new value
+     * @return the new snapshot
+     */
+    public FieldSnapshot withValue(Format.Tag tag, String language, String value) {
+        int row = language == null ? CONSTANT_ROW : tags.languageId(language) + 1;
+        int tagId = tags.tagId(tag);
+        if (Objects.equals(value(row, tagId), value)) return this;
+
+        int newWidth = Math.max(width, tags.tagCount());
+        int rows = Math.max(rowCount(), row + 1);
+        String[] newValues = resize(newWidth, rows);
+        newValues[row * newWidth + tagId] = value;
+
+        int[] newOrder = order;
+        if (value != null && !contains(order, tagId)) {
+            newOrder = Arrays.copyOf(order, order.length + 1);
+            newOrder[order.length] = tagId;
+        }
+        return new FieldSnapshot(tags, section, template, newWidth, newValues, newOrder);
+    }
+
+    public FieldSnapshot withSection(String section) {
+        return Objects.equals(section, this.section) ? this : new FieldSnapshot(tags, section, template, width, values, order);
+    }
+
+    public FieldSnapshot withTemplate(CompiledTemplate template) {
+        return template == this.template ? this : new FieldSnapshot(tags, section, template, width, values, order);
+    }
+
+    /**
+     * Return the same snapshot indexed with the ids of another tag table, used when the format of a field changes
+     *
+     * @param newTags the tag table of the new format
+     * @param newTemplate the template in the new format
+     * @return the new snapshot
+     */
+    public FieldSnapshot migrate(TagTable newTags, CompiledTemplate newTemplate) {
+        if (newTags == tags) return withTemplate(newTemplate);
+
+        FieldSnapshot migrated = new FieldSnapshot(newTags, section, newTemplate, 0, new String[0], new int[0]);
+        for (int id : order) { // the tags keep their order
+            for (int row = 0; row < rowCount(); row++) {
+                String value = values[row * width + id];
+                if (value != null) migrated = migrated.withValue(tags.tag(id), language(row), value);
+            }
+        }
+        return migrated;
+    }
+
+    /**
+     * Report what changed from a previous snapshot of the field to this one
+     *
+     * @param previous the previous snapshot
+     * @param changes receives each difference
+     */
+    public void diff(FieldSnapshot previous, Changes changes) {
+        if (!Objects.equals(previous.section, section)) changes.sectionChanged(section);
+        if (!previous.template.getSource().equals(template.getSource())) changes.templateChanged(template);
+
+        if (previous.tags == tags) {
+            // same ids on both sides, compare cell by cell
+            int rows = Math.max(rowCount(), previous.rowCount());
+            int columns = Math.max(width, previous.width);
+            for (int row = 0; row < rows; row++) {
+                for (int id = 0; id < columns; id++) {
+                    String value = value(row, id);
+                    if (!Objects.equals(previous.value(row, id), value)) changes.valueChanged(tags.tag(id), language(row), value);
+                }
+            }
+        } else {
+            // the format changed, compare by tag and language
+            for (int row = 0; row < rowCount(); row++) {
+                for (int id = 0; id < width; id++) {
+                    String value = values[row * width + id];
+                    if (value != null && !value.equals(previous.value(tags.tag(id), language(row))))
+                        changes.valueChanged(tags.tag(id), language(row), value);
+                }
+            }
+            for (int row = 0; row < previous.rowCount(); row++) {
+                for (int id = 0; id < previous.width; id++) {
+                    Format.Tag tag = previous.tags.tag(id);
+                    String language = previous.language(row);
+                    if (previous.values[row * previous.width + id] != null && value(tag, language) == null)
+                        changes.valueChanged(tag, language, null);
+                }
+            }
+        }
+    }
+
+    private static boolean contains(int[] ids, int id) {
+        for (int i : ids) {
+            if (i == id) return true;
+        }
+        return false;
+    }
+
+    private int rowCount() {
+        return values.length / Math.max(width, 1);
+    }
+
+    private String language(int row) {
+        return row == CONSTANT_ROW ? null : tags.language(row - 1);
+    }
+
+    private String[] resize(int newWidth, int rows) {
+        if (newWidth == width) return Arrays.copyOf(values, newWidth * rows);
+
+        String[] resized = new String[newWidth * rows];
+        for (int row = 0; row < rowCount(); row++) {
+            System.arraycopy(values, row * width, resized, row * newWidth, width);
+        }
+        return resized;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof FieldSnapshot other)) return false;
+        if (tags != other.tags || template != other.template || !Objects.equals(section, other.section)) return false;
+
+        int rows = Math.max(rowCount(), other.rowCount());
+        int columns = Math.max(width, other.width);
+        for (int row = 0; row < rows; row++) {
+            for (int id = 0; id < columns; id++) {
+                if (!Objects.equals(value(row, id), other.value(row, id))) return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Objects.hash(section, template);
+        for (int row = 0; row < rowCount(); row++) {
+            for (int id = 0; id < width; id++) {
+                String value = values[row * width + id];
+                if (value != null) hash = 31 * hash + (row * 7919 + id) * value.hashCode();
+            }
+        }
+        return hash;
+    }
+}
@@ -1,17 +1,33 @@
 package ch.clic.newsmaker;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
 
 public class FileManager {
 
+    private static final int WRITE_BUFFER_SIZE = 1 << 16;
+    private static final long MAP_THRESHOLD = 1 << 20; // files at least this big are memory-mapped when read
+    private static final Queue<ByteBuffer> WRITE_BUFFERS = new ConcurrentLinkedQueue<>(); // direct buffers reused between writes
+
     private FileManager() {}
 
     /**
@@ -22,7 +38,9 @@ public class FileManager {
      * @throws IOException if something wrong happen while reading
      */
     static public String readContentOfResource(String path) throws IOException {
-        return readContentOfResource(openResource(path));
+        try (InputStream inputStream = openResource(path)) {
+            return readContentOfResource(inputStream);
+        }
     }
 
     /**
@@ -36,22 +54,98 @@ public class FileManager {
     }
 
     /**
-     * Save string content in file on disk
+     * Write the content of a file through its channel
+     */
+    @FunctionalInterface
+    public interface ChannelWriter {
+        void write(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Save string content encoded in UTF-8 in file on disk.
+     * The file is replaced atomically, so it is never left half written.
      *
      * @param content the content to write
      * @param file the file where to write
+     * @throws IOException if the content could not be written, the file is then left unchanged
      */
-    public static void saveInFile(String content, File file) {
+    public static void saveInFile(String content, File file) throws IOException {
         if (Objects.isNull(file)) return;
-        try (Writer wr = new FileWriter(file)) {
-            wr.write(content);
-        } catch (IOException e) {
-            e.printStackTrace();
+        PipelineMetrics.Sample sample = PipelineMetrics.start(PipelineMetrics.Operation.HTML_WRITE);
+        writeAtomically(file.toPath(), channel -> writeUTF8(content, channel));
+        sample.stop(file.length());
+    }
+
+    /**
+     * Write a file in a temporary file next to it, flush it to the disk and then move it over the target.
+     * The target either keeps its previous content or gets the complete new content, even if the application is killed
+     * while writing.
+     *
+     * @param target the file to write
+     * @param writer writes the content in the channel of the temporary file, without closing it
+     * @throws IOException if the content could not be written, the target is then left unchanged
+     */
+    public static void writeAtomically(Path target, ChannelWriter writer) throws IOException {
+        Path directory = target.toAbsolutePath().getParent();
+        Path temporary = directory.resolve("." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+
+        try {
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writer.write(channel);
+                channel.force(true);
+            }
+            try {
+                Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temporary);
+            throw e;
+        }
+    }
+
+    /**
+     * Encode a text in UTF-8 and write it in a channel through a reusable direct buffer
+     *
+     * @param content the text to write
+     * @param channel the channel where to write
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeUTF8(CharSequence content, WritableByteChannel channel) throws IOException {
+        ByteBuffer buffer = WRITE_BUFFERS.poll();
+        if (buffer == null) buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        try {
+            CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.wrap(content);
+            buffer.clear();
+
+            CoderResult result;
+            do {
+                result = encoder.encode(chars, buffer, true);
+                drain(buffer, channel);
+            } while (result.isOverflow());
+            do {
+                result = encoder.flush(buffer);
+                drain(buffer, channel);
+            } while (result.isOverflow());
+        } finally {
+            WRITE_BUFFERS.offer(buffer);
         }
     }
 
+    private static void drain(ByteBuffer buffer, WritableByteChannel channel) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
     /**
-     *  read the content of a file and return it as a <code>String</code>
+     *  read the content of a file encoded in UTF-8 and return it as a <code>String</code>.
+     *  Small files are read in a single buffer of the size of the file, big files are memory-mapped.
      *
      * @param file the file to read
      * @return the content of the file as a <code>String</code>
@@ -59,16 +153,26 @@ public class FileManager {
      */
     static public String readContentOfFile(File file) throws IOException {
 
-        String content;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
 
-        try (InputStream inputStream = new FileInputStream(file)) {
-            content = readContentOfResource(inputStream);
+            if (size >= MAP_THRESHOLD) {
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                return StandardCharsets.UTF_8.newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE)
+                        .decode(mapped)
+                        .toString();
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) != -1);
+            return new String(buffer.array(), 0, buffer.position(), StandardCharsets.UTF_8);
         }
-        return content;
     }
 
     /**
-     * Open the file from <code>inputStream</code> read the content and return it as a <code>String</code>
+     * Open the file from <code>inputStream</code> read the content encoded in UTF-8 and return it as a <code>String</code>
      *
      * @param inputStream the stream of the file
      * @return the content of the file as a <code>String</code>
@@ -78,18 +182,27 @@ public class FileManager {
         if (inputStream == null)
             throw new IllegalArgumentException("inputStream is null");
 
-        final ByteArrayOutputStream result = new ByteArrayOutputStream();
-        final byte[] buffer = new byte[1024];
-        int length;
-
-        while ((length = inputStream.read(buffer)) != -1) {
-            result.write(buffer, 0, length);
-        }
-
-        return result.toString();
+        return new String(inputStream.readAllBytes(), StandardCharsets.UTF_8);
     }
 
+    /**
+     * Copy a resource on disk, byte for byte
+     *
+     * @param path the path of the resource
+     * @param copyPath the file where to copy the resource
+     * @throws IOException if the resource could not be read or the file could not be written
+     */
     public static void copyResourceTo(Path path, Path copyPath) throws IOException {
-        saveInFile(readContentOfResource(path.toString()), copyPath.toFile());
+        byte[] content;
+        try (InputStream inputStream = openResource(path.toString())) {
+            if (inputStream == null)
+                throw new IllegalArgumentException("no resource at " + path);
+            content = inputStream.readAllBytes();
+        }
+
+        writeAtomically(copyPath, channel -> {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) channel.write(buffer);
+        });
     }
 }
@@ -13,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,22 +28,77 @@ public class Format {
      * The tags identify a part of the template to remplace with a text value
      * <p>
      * For exemple, the <code>@NEWS_TITLE</code> tag in the html base template will be replaced by the corresponding title of a news
+     * <p>
+     * Two tags are equal if they have the same name and are both language-variant or both language-constant. The tags
+     * of a format are canonical instances given by its <code>TagTable</code>, which also gives them their ordinal.
      */
-    public record Tag(String name, Boolean isLanguageVariant) {
+    public static final class Tag {
+
+        private final String name;
+        private final boolean languageVariant;
+        private final String placeholder; // the tag as written in the templates
+        private final TagTable table; // the table which gave the ordinal, null if the tag is not canonical
+        private final int ordinal;
+
+        public Tag(String name, boolean languageVariant) {
+            this(name, languageVariant, null, -1);
+        }
+
+        Tag(String name, boolean languageVariant, TagTable table, int ordinal) {
+            this.name = name;
+            this.languageVariant = languageVariant;
+            this.placeholder = '@' + name;
+            this.table = table;
+            this.ordinal = ordinal;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public boolean isLanguageVariant() {
+            return languageVariant;
+        }
+
+        /**
+         * @return the tag as written in the templates, like <code>@NEWS_TITLE</code>
+         */
+        public String placeholder() {
+            return placeholder;
+        }
+
+        /**
+         * @param table a tag table
+         * @return the ordinal of the tag in this table, or -1 if the tag is not a canonical tag of this table
+         */
+        int ordinalIn(TagTable table) {
+            return table == this.table ? ordinal : -1;
+        }
 
         @Override
         public String toString() {
-            return '@' + name();
+            return placeholder;
         }
+
         public String presentationName() {
-            return name().toLowerCase().replaceAll("[_#@]", " ");
+            return name.toLowerCase().replaceAll("[_#@]", " ");
         }
 
         public boolean isBigText() {
             return name.contains("DESCRIPTION");
         }
 
+        @Override
+        public boolean equals(Object o) {
+            return this == o || o instanceof Tag other && languageVariant == other.languageVariant && name.equals(other.name);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * name.hashCode() + (languageVariant ? 1 : 0);
+        }
     }
+
     /**
      * A Preset for the field with preconfigured parameters like background color, image url or description
      *
@@ -51,7 +107,7 @@ public class Format {
      * @param sectionTag the section in which the preset belong
      * @param parameters all the preconfigured parameters of the preset (a value for each tag of the <code>Tags</code> enum)
      */
-    public record Preset(String name, String template, String sectionTag, Map<Tag, List<String>> parameters) {
+    public record Preset(String name, CompiledTemplate template, String sectionTag, Map<Tag, List<String>> parameters) {
 
         @Override
         public String toString() {
@@ -62,16 +118,25 @@ public class Format {
 
     private static final Path DEFAULT_FOLDER_PATH = Paths.get("/assets");
     private static final Path CONFIG_FILE_PATH = Paths.get("/config");
-    private static final String DEFAULT_CONFIG_FILE_NAME = "config.json";
-    private static final Path LAST_USED_FOLDER_PATH = Paths.get("NewsMakerConfig");
-    private static final String DEFAULT_BASE_FILE_NAME = "base.html";
+    static final String DEFAULT_CONFIG_FILE_NAME = "config.json";
+    static final Path LAST_USED_FOLDER_PATH = Paths.get("NewsMakerConfig");
+    static final String DEFAULT_BASE_FILE_NAME = "base.html";
+    private static final String LANGUAGE_BASE_FILE_NAME = "base_%s.html"; // optional base of a single language edition
+    private static final String LANGUAGE_BASE_FILE_PATTERN = "base_.+\\.html";
+    private static final List<String> DEFAULT_LANGUAGES = List.of("francais", "english"); // the default format has a base for each
     private static final String DEFAULT_NEWS_TEMPLATE_FILE_NAME = "default_news_template.html";
     private static final String DEFAULT_COMM_TEMPLATE_FILE_NAME = "commissions.html";
+    private static final String PREVIEW_DEBOUNCE_TAG = "previewDebounceMillis";
+    private static final long DEFAULT_PREVIEW_DEBOUNCE_MILLIS = 300;
     private final File baseFile, newsTemplateFile;
     public final StringProperty baseProperty = new SimpleStringProperty(); // the first html template in which elements will be inserted
     public String defaultNewsTemplate; // the template of a default div
     public List<Preset> presets; // list of all preconfigured presets
     public ObservableList<String> languages; // set of all languages in which the document will be redacted
+    private final TemplateRegistry templates; // the templates of the presets and fields, shared by content
+    public long previewDebounceMillis = DEFAULT_PREVIEW_DEBOUNCE_MILLIS; // delay without edit before the live preview is rendered
+    private volatile BaseTemplate compiledBase = BaseTemplate.compile(""); // baseProperty compiled each time it is set, read by the render threads
+    private final Map<String, BaseTemplate> languageBases = new HashMap<>(); // the bases of the single language editions, by language
 
 
     /**
@@ -81,29 +146,43 @@ public class Format {
      * @param languages set of all languages in which the document will be redacted
      */
     public Format(List<Preset> presets, List<String> languages) throws IOException {
+        this(presets, languages, new TemplateRegistry(createLastUsedFolder()));
+    }
 
+    /**
+     * Constructor of a <code>Format</code> object
+     *
+     * @param presets list of all preconfigured presets
+     * @param languages set of all languages in which the document will be redacted
+     * @param templates the registry from which the templates of the presets were loaded
+     */
+    public Format(List<Preset> presets, List<String> languages, TemplateRegistry templates) throws IOException {
 
-        if (!Files.exists(LAST_USED_FOLDER_PATH)) {
-            Files.createDirectories(LAST_USED_FOLDER_PATH);
-            FileManager.copyResourceTo(DEFAULT_FOLDER_PATH.resolve(DEFAULT_BASE_FILE_NAME), LAST_USED_FOLDER_PATH.resolve(DEFAULT_BASE_FILE_NAME));
-            FileManager.copyResourceTo(DEFAULT_FOLDER_PATH.resolve(DEFAULT_NEWS_TEMPLATE_FILE_NAME), LAST_USED_FOLDER_PATH.resolve(DEFAULT_NEWS_TEMPLATE_FILE_NAME));
-            FileManager.copyResourceTo(DEFAULT_FOLDER_PATH.resolve(DEFAULT_COMM_TEMPLATE_FILE_NAME), LAST_USED_FOLDER_PATH.resolve(DEFAULT_COMM_TEMPLATE_FILE_NAME));
-            FileManager.copyResourceTo(CONFIG_FILE_PATH.resolve(DEFAULT_CONFIG_FILE_NAME), LAST_USED_FOLDER_PATH.resolve(DEFAULT_CONFIG_FILE_NAME));
-        }
+        // compiled on the thread setting the base, the FX thread once the window is shown
+        baseProperty.addListener((o, oldValue, newValue) -> compiledBase = BaseTemplate.compile(newValue));
 
-        this.baseFile = new File(LAST_USED_FOLDER_PATH.resolve(DEFAULT_BASE_FILE_NAME).toString());
-        this.newsTemplateFile = new File(LAST_USED_FOLDER_PATH.resolve(DEFAULT_NEWS_TEMPLATE_FILE_NAME).toString());
+        this.baseFile = new File(templates.getFolder().resolve(DEFAULT_BASE_FILE_NAME).toString());
+        this.newsTemplateFile = new File(templates.getFolder().resolve(DEFAULT_NEWS_TEMPLATE_FILE_NAME).toString());
 
         // try open the folder with the last saved format. Open default files if it fails
         try {
             this.baseProperty.set(FileManager.readContentOfFile(baseFile));
-            this.defaultNewsTemplate = FileManager.readContentOfFile(newsTemplateFile);
+            this.defaultNewsTemplate = templates.load(DEFAULT_NEWS_TEMPLATE_FILE_NAME).getSource();
         } catch (Exception e) {
 
         }
 
+        for (String language : languages) {
+            Path languageBaseFile = templates.getFolder().resolve(LANGUAGE_BASE_FILE_NAME.formatted(language.toLowerCase()));
+            if (Files.exists(languageBaseFile)) {
+                languageBases.put(language, BaseTemplate.compile(FileManager.readContentOfFile(languageBaseFile.toFile())));
+            }
+        }
+
         this.presets = presets;
         this.languages = FXCollections.observableList(languages);
+        this.templates = templates;
+        languages.forEach(templates.getTags()::languageId); // the languages of the format get the first ids
     }
 
 
@@ -115,45 +194,109 @@ public class Format {
      * @throws IOException throws <code>IOException</code> in case of an input-output exception (the file doesn't exist)
      */
     static public Format fromJSON(File file) throws IOException {
+        return fromJSON(file, new TemplateRegistry(LAST_USED_FOLDER_PATH));
+    }
+
+    /**
+     * Construct a <code>Format</code> object from a folder containing a config.json file, the base and the template
+     * files. Unlike <code>recentFormat()</code>, nothing is copied in the "last used folder".
+     *
+     * @param folder the folder of the format
+     * @return a <code>Format</code> object
+     * @throws IOException throws <code>IOException</code> in case of an input-output exception (the file doesn't exist)
+     */
+    static public Format fromFolder(Path folder) throws IOException {
+        return fromJSON(folder.resolve(DEFAULT_CONFIG_FILE_NAME).toFile(), new TemplateRegistry(folder));
+    }
+
+    static private Format fromJSON(File file, TemplateRegistry templates) throws IOException {
+        PipelineMetrics.Sample sample = PipelineMetrics.start(PipelineMetrics.Operation.FORMAT_LOAD);
 
         String json = FileManager.readContentOfFile(file);
 
         ObjectMapper om = new ObjectMapper();
         JsonNode node = om.readTree(json);
 
-        List<Preset> presets = extractPresets(node);
+        // the template files are read in parallel before the presets are built
+        List<String> templateFiles = new ArrayList<>();
+        node.path("presets").forEach(nodePreset -> {
+            if (nodePreset.hasNonNull("templateFile")) templateFiles.add(nodePreset.get("templateFile").asText());
+        });
+        templates.preload(templateFiles);
+
+        List<Preset> presets = extractPresets(node, templates);
 
         List<String> languages = new ArrayList<>();
         for (JsonNode jsonNode : node.get("languages")) {
             languages.add(jsonNode.asText());
         }
 
-        return new Format(presets, languages);
+        Format format = new Format(presets, languages, templates);
+        format.previewDebounceMillis = node.path(PREVIEW_DEBOUNCE_TAG).asLong(DEFAULT_PREVIEW_DEBOUNCE_MILLIS);
+        sample.stop(json.length());
+        return format;
     }
 
+    /**
+     * Return the format of the "last used folder". The format is loaded only once and then shared, see
+     * <code>FormatService</code>.
+     *
+     * @return the format
+     * @throws IOException if the format could not be loaded
+     */
     static public Format recentFormat() throws IOException {
+        return FormatService.recent().getFormat();
+    }
 
-        File configFile = new File(LAST_USED_FOLDER_PATH.resolve(DEFAULT_CONFIG_FILE_NAME).toString());
-
+    /**
+     * Create the "last used folder" with the default format, if it does not exist yet
+     *
+     * @return the "last used folder"
+     * @throws IOException if the default format could not be copied
+     */
+    static Path createLastUsedFolder() throws IOException {
         if (!Files.exists(LAST_USED_FOLDER_PATH)) {
             Files.createDirectories(LAST_USED_FOLDER_PATH);
             FileManager.copyResourceTo(DEFAULT_FOLDER_PATH.resolve(DEFAULT_BASE_FILE_NAME), LAST_USED_FOLDER_PATH.resolve(DEFAULT_BASE_FILE_NAME));
+            for (String language : DEFAULT_LANGUAGES) {
+                String languageBase = LANGUAGE_BASE_FILE_NAME.formatted(language);
+                FileManager.copyResourceTo(DEFAULT_FOLDER_PATH.resolve(languageBase), LAST_USED_FOLDER_PATH.resolve(languageBase));
+            }
             FileManager.copyResourceTo(DEFAULT_FOLDER_PATH.resolve(DEFAULT_NEWS_TEMPLATE_FILE_NAME), LAST_USED_FOLDER_PATH.resolve(DEFAULT_NEWS_TEMPLATE_FILE_NAME));
             FileManager.copyResourceTo(DEFAULT_FOLDER_PATH.resolve(DEFAULT_COMM_TEMPLATE_FILE_NAME), LAST_USED_FOLDER_PATH.resolve(DEFAULT_COMM_TEMPLATE_FILE_NAME));
             FileManager.copyResourceTo(CONFIG_FILE_PATH.resolve(DEFAULT_CONFIG_FILE_NAME), LAST_USED_FOLDER_PATH.resolve(DEFAULT_CONFIG_FILE_NAME));
         }
+        return LAST_USED_FOLDER_PATH;
+    }
+
+    /**
+     * Load the format again from its folder after its config changed. The templates already compiled are reused,
+     * so the fields keep their template and their tags.
+     *
+     * @return the new format
+     * @throws IOException if the config could not be read
+     */
+    Format reload() throws IOException {
+        return fromJSON(templates.getFolder().resolve(DEFAULT_CONFIG_FILE_NAME).toFile(), templates);
+    }
 
-        return fromJSON(configFile);
+    /**
+     * @param fileName the name of a file of the format folder
+     * @return true if the file is the base of a single language edition
+     */
+    static boolean isLanguageBaseFile(String fileName) {
+        return fileName.matches(LANGUAGE_BASE_FILE_PATTERN);
     }
 
     /**
-     * Extract presets from a json object
+     * Extract presets from a json object. Presets using the same template file share the same template.
      *
      * @param node the json object containing the presets configurations
+     * @param templates the registry from which the template files are loaded
      * @return the list of presets extracted
      * @throws IOException throws <code>IOException</code> in case of an input-output exception
      */
-    static private List<Preset> extractPresets(JsonNode node) throws IOException {
+    static private List<Preset> extractPresets(JsonNode node, TemplateRegistry templates) throws IOException {
         List<Preset> presets = new ArrayList<>();
         JsonNode jsonNode = node.get("presets");
 
@@ -163,7 +306,7 @@ public class Format {
             String name = nodePreset.get("name").asText();
             String sectionTag = nodePreset.get("sectionTag").asText();
             String templateFile = nodePreset.get("templateFile").asText();
-            String template = FileManager.readContentOfFile(LAST_USED_FOLDER_PATH.resolve(templateFile).toFile());
+            CompiledTemplate template = templates.load(templateFile);
 
             // extract all parameters from the node
             Map<Tag, List<String>> parameters = new LinkedHashMap<>();
@@ -171,7 +314,7 @@ public class Format {
 
             nodeParams.fieldNames().forEachRemaining(fieldName -> {
                 JsonNode field = nodeParams.get(fieldName);
-                Tag tag = new Tag(fieldName, field.isArray());
+                Tag tag = templates.getTags().intern(fieldName, field.isArray());
                 List<String> array = new ArrayList<>();
                 if (field.isArray()) {
                     field.forEach(n -> array.add(n.asText()));
@@ -187,6 +330,17 @@ public class Format {
         return presets;
     }
 
+    public TemplateRegistry getTemplates() {
+        return templates;
+    }
+
+    /**
+     * @return the ids of the tags and languages of the format
+     */
+    public TagTable getTags() {
+        return templates.getTags();
+    }
+
     public StringProperty getBaseProperty() {
         return baseProperty;
     }
@@ -196,12 +350,33 @@ public class Format {
     }
 
     /**
-     * Save the format in a "last used folder".
+     * Return the base template compiled when it was last set. Can be called from any thread.
+     *
+     * @return the compiled base template
+     */
+    public BaseTemplate getCompiledBase() {
+        return compiledBase;
+    }
+
+    /**
+     * Return the base template of the edition of a single language. It is the file base_LANGUAGE.html of the format
+     * folder if it exists, else the base template of the whole document.
+     *
+     * @param language the language of the edition
+     * @return the compiled base template of the edition
+     */
+    public BaseTemplate getLanguageBase(String language) {
+        BaseTemplate languageBase = languageBases.get(language);
+        return languageBase != null ? languageBase : getCompiledBase();
+    }
+
+    /**
+     * Save the format in its folder (the "last used folder" by default).
      *
      * @throws IOException if an I/O error occurs
      */
     public void saveFormat() throws IOException {
-        Files.createDirectories(LAST_USED_FOLDER_PATH);
+        Files.createDirectories(templates.getFolder());
         FileManager.saveInFile(baseProperty.get(),  baseFile);
         FileManager.saveInFile(defaultNewsTemplate, newsTemplateFile);
     }
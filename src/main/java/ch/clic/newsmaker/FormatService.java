@@ -0,0 +1,216 @@
+package ch.clic.newsmaker;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load the format of a folder once and reload it when its files change.
+ * <p>
+ * The format is parsed the first time it is asked for and then shared. Once <code>watch</code> is called, the folder
+ * is watched and only the changed files are read again: a changed template is compiled again and replaced in the
+ * presets and the fields using it, the other templates are kept. The listeners are notified on the executor given to
+ * <code>watch</code>, the JavaFX thread in the application.
+ */
+public final class FormatService implements AutoCloseable {
+
+    /**
+     * Notified when the format is reloaded
+     */
+    public interface Listener {
+
+        /**
+         * The config or a language base changed, the format was loaded again with the same templates
+         *
+         * @param format the new format
+         */
+        default void formatReloaded(Format format) {}
+
+        /**
+         * A template file changed, the fields using the old template should use the new one
+         *
+         * @param oldTemplate the template before the change
+         * @param newTemplate the template read from the file
+         */
+        default void templateChanged(CompiledTemplate oldTemplate, CompiledTemplate newTemplate) {}
+
+        /**
+         * The changed files could not be read, the format in use is kept
+         *
+         * @param e the error
+         */
+        default void reloadFailed(IOException e) {}
+    }
+
+    private static final Map<Path, FormatService> SERVICES = new ConcurrentHashMap<>(); // the services by folder
+    private static final long QUIET_MILLIS = 100; // the delay without change after which the changes are applied
+
+    private final Path folder;
+    private volatile Format format; // null until the format is first asked for
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private WatchService watchService;
+
+    private FormatService(Path folder) {
+        this.folder = folder;
+    }
+
+    /**
+     * @param folder the folder of a format
+     * @return the service of the folder, shared by all its users
+     */
+    public static FormatService of(Path folder) {
+        return SERVICES.computeIfAbsent(folder.toAbsolutePath().normalize(), FormatService::new);
+    }
+
+    /**
+     * @return the service of the "last used folder", created with the default format if it does not exist
+     * @throws IOException if the default format could not be copied
+     */
+    public static FormatService recent() throws IOException {
+        Format.createLastUsedFolder();
+        return of(Format.LAST_USED_FOLDER_PATH);
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    /**
+     * Return the format of the folder, loading it only the first time
+     *
+     * @return the format
+     * @throws IOException if the format could not be loaded
+     */
+    public Format getFormat() throws IOException {
+        Format current = format;
+        if (current == null) {
+            synchronized (this) {
+                if (format == null) format = Format.fromFolder(folder);
+                current = format;
+            }
+        }
+        return current;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start watching the folder, the changes are applied on a background thread
+     *
+     * @param notifier the executor on which the format is updated and the listeners are notified
+     * @throws IOException if the folder could not be watched
+     */
+    public synchronized void watch(Executor notifier) throws IOException {
+        if (watchService != null) return;
+
+        getFormat();
+        watchService = FileSystems.getDefault().newWatchService();
+        folder.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        WatchService watcher = watchService;
+        Thread thread = new Thread(() -> watchLoop(watcher, notifier), "format-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop watching the folder
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (watchService != null) {
+            watchService.close();
+            watchService = null;
+        }
+    }
+
+    private void watchLoop(WatchService watcher, Executor notifier) {
+        try {
+            while (true) {
+                // editors often write a file in several steps, wait until the folder is quiet
+                Set<String> changed = new LinkedHashSet<>();
+                WatchKey key = watcher.take();
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        changed.add(event.kind() == StandardWatchEventKinds.OVERFLOW ? null : event.context().toString());
+                    }
+                    key.reset();
+                    key = watcher.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS);
+                }
+
+                try {
+                    reload(changed, notifier);
+                } catch (IOException e) {
+                    notifier.execute(() -> listeners.forEach(listener -> listener.reloadFailed(e)));
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // the service was closed
+        }
+    }
+
+    /**
+     * Read the changed files and apply the changes on the notifier
+     *
+     * @param changed the names of the changed files, <code>null</code> if events were lost
+     */
+    private void reload(Set<String> changed, Executor notifier) throws IOException {
+        Format current = format;
+        TemplateRegistry templates = current.getTemplates();
+
+        boolean reloadConfig = changed.contains(null);
+        String base = null;
+        Map<CompiledTemplate, CompiledTemplate> changedTemplates = new LinkedHashMap<>(); // the new template of each changed one
+
+        for (String fileName : changed) {
+            if (fileName == null) continue;
+
+            if (fileName.equals(Format.DEFAULT_BASE_FILE_NAME)) {
+                base = FileManager.readContentOfFile(folder.resolve(fileName).toFile());
+            } else if (fileName.equals(Format.DEFAULT_CONFIG_FILE_NAME) || Format.isLanguageBaseFile(fileName)) {
+                reloadConfig = true;
+            } else if (templates.isLoaded(fileName)) {
+                CompiledTemplate oldTemplate = templates.reload(fileName);
+                CompiledTemplate newTemplate = templates.load(fileName);
+                if (oldTemplate != newTemplate) {
+                    changedTemplates.put(oldTemplate, newTemplate);
+                    reloadConfig = true; // the presets must use the new template
+                }
+            }
+        }
+
+        Format reloaded = reloadConfig ? current.reload() : current;
+        format = reloaded;
+
+        String newBase = base;
+        notifier.execute(() -> {
+            if (reloaded != current) {
+                reloaded.getBaseProperty().set(current.getBase()); // keep the edits of the base not saved yet
+                listeners.forEach(listener -> listener.formatReloaded(reloaded));
+            }
+            changedTemplates.forEach((oldTemplate, newTemplate) ->
+                    listeners.forEach(listener -> listener.templateChanged(oldTemplate, newTemplate)));
+            if (newBase != null && !newBase.equals(reloaded.getBase())) reloaded.getBaseProperty().set(newBase);
+        });
+    }
+}
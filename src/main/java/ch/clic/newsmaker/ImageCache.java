@@ -0,0 +1,362 @@
+package ch.clic.newsmaker;
+
+import javafx.scene.image.Image;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * A local copy of the images of the preview.
+ * <p>
+ * The images are downloaded once in a folder whose size is bounded: when it is full, the images used least recently
+ * are deleted. The order of use is kept in the modification time of the files, so it survives a restart. The
+ * thumbnails shown in the editor are decoded from the copies and the last ones are kept in memory.
+ * <p>
+ * Only the HTML of the preview uses the copies, through <code>localize</code>: the exported HTML keeps the original
+ * URLs. The images are downloaded in the background, an image missing from the cache is shown from its URL until it
+ * is downloaded.
+ */
+public final class ImageCache {
+
+    public static final int THUMBNAIL_SIZE = 96; // the width and height of the thumbnails, in pixels
+    private static final System.Logger LOGGER = System.getLogger(ImageCache.class.getName());
+    private static final int THUMBNAILS = 64; // the number of thumbnails kept in memory
+    private static final long RETRY_MILLIS = 60_000; // the delay before an image which could not be downloaded is tried again
+    private static final Pattern IMAGE_URL = Pattern.compile("(?i)\\b(src|background)(\\s*=\\s*)([\"'])(https?://[^\"'<>\\s]+)\\3");
+    private static final Map<String, String> EXTENSIONS = Map.of(
+            "image/png", ".png", "image/jpeg", ".jpg", "image/gif", ".gif", "image/webp", ".webp", "image/svg+xml", ".svg", "image/bmp", ".bmp");
+
+    private record Entry(Path file, long size) {}
+
+    private final Path folder;
+    private final long maxSize; // in bytes
+    private final HttpClient client;
+    private final LongSupplier clock; // the current time in milliseconds, for the delay before a download is tried again
+    private final boolean enabled; // false if the folder could not be created, the URLs are then kept
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true); // the images by key, least recently used first
+    private final Set<String> touched = new HashSet<>(); // the images whose use was written in their file since the start
+    private final Map<String, CompletableFuture<Path>> downloads = new HashMap<>(); // the downloads in progress by URL
+    private final Map<String, Long> failures = new HashMap<>(); // the time of the last failed download by URL
+    private final LinkedHashMap<String, CompletableFuture<Image>> thumbnails = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<Image>> eldest) {
+            return size() > THUMBNAILS;
+        }
+    };
+    private long size; // the bytes of all the images
+
+    /**
+     * Open the cache in a folder, keeping the images already in it
+     *
+     * @param folder the folder of the images, created if it does not exist
+     * @param maxSize the maximum size of the images, in bytes
+     * @param client used to download the images
+     */
+    public ImageCache(Path folder, long maxSize, HttpClient client) {
+        this(folder, maxSize, client, System::currentTimeMillis);
+    }
+
+    ImageCache(Path folder, long maxSize, HttpClient client, LongSupplier clock) {
+        this.folder = folder;
+        this.maxSize = maxSize;
+        this.client = client;
+        this.clock = clock;
+
+        boolean opened = true;
+        try {
+            Files.createDirectories(folder);
+            List<Path> files = new ArrayList<>();
+            try (Stream<Path> list = Files.list(folder)) {
+                for (Path file : list.toList()) {
+                    if (file.getFileName().toString().endsWith(".part")) {
+                        Files.deleteIfExists(file); // a download interrupted when NewsMaker was closed
+                    } else {
+                        files.add(file);
+                    }
+                }
+            }
+            // the least recently used first, as they were when NewsMaker was closed
+            Map<Path, FileTime> used = new HashMap<>();
+            for (Path file : files) used.put(file, Files.getLastModifiedTime(file));
+            for (Path file : files.stream().sorted(Comparator.comparing(used::get)).toList()) {
+                Entry entry = new Entry(file, Files.size(file));
+                entries.put(key(file), entry);
+                size += entry.size();
+            }
+            evict();
+        } catch (IOException e) {
+            // not shown to the user: the preview then shows the images from their URL
+            LOGGER.log(System.Logger.Level.WARNING, "The image cache could not be opened in " + folder, e);
+            opened = false;
+        }
+        this.enabled = opened;
+    }
+
+    /**
+     * Open the cache in a folder, downloading the images with a default client
+     *
+     * @param folder the folder of the images, created if it does not exist
+     * @param maxSize the maximum size of the images, in bytes
+     * @return the cache
+     */
+    public static ImageCache open(Path folder, long maxSize) {
+        return new ImageCache(folder, maxSize, HttpClient.newBuilder()
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build());
+    }
+
+    /**
+     * @return the bytes of all the images in the cache
+     */
+    public synchronized long size() {
+        return size;
+    }
+
+    /**
+     * Return the local copy of an image, marking it as used
+     *
+     * @param url the URL of the image
+     * @return the copy, or null if the image is not in the cache
+     */
+    public synchronized Path cached(String url) {
+        String key = key(url);
+        Entry entry = entries.get(key);
+        if (entry == null) return null;
+
+        if (touched.add(key)) {
+            try {
+                Files.setLastModifiedTime(entry.file(), FileTime.fromMillis(System.currentTimeMillis()));
+            } catch (IOException e) {
+                // the order of use is only lost for this image
+            }
+        }
+        return entry.file();
+    }
+
+    /**
+     * Download an image in the background if it is not in the cache
+     *
+     * @param url the URL of the image
+     * @return the copy of the image, completed exceptionally if it could not be downloaded
+     */
+    public synchronized CompletableFuture<Path> fetch(String url) {
+        Path cached = cached(url);
+        if (cached != null) return CompletableFuture.completedFuture(cached);
+        if (!enabled) return CompletableFuture.failedFuture(new IOException("The image cache is disabled"));
+
+        CompletableFuture<Path> download = downloads.get(url);
+        if (download != null) return download;
+
+        Long failed = failures.get(url);
+        if (failed != null && clock.getAsLong() - failed < RETRY_MILLIS) {
+            return CompletableFuture.failedFuture(new IOException("The image could not be downloaded recently: " + url));
+        }
+
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(URI.create(url)).timeout(Duration.ofSeconds(30)).GET().build();
+        } catch (IllegalArgumentException e) {
+            failures.put(url, clock.getAsLong());
+            return CompletableFuture.failedFuture(new IOException("Not a valid URL: " + url, e));
+        }
+
+        // completed once the download is no longer in progress, so a failure is known when the future fails
+        CompletableFuture<Path> result = new CompletableFuture<>();
+        downloads.put(url, result);
+
+        Path part = folder.resolve(key(url) + ".part");
+        client.sendAsync(request, HttpResponse.BodyHandlers.ofFile(part))
+                .thenApply(response -> {
+                    try {
+                        if (response.statusCode() != 200) {
+                            throw new IOException("HTTP " + response.statusCode() + " for " + url);
+                        }
+                        return downloaded(url, part, extension(url, response.headers().firstValue("Content-Type").orElse("")));
+                    } catch (IOException e) {
+                        try {
+                            Files.deleteIfExists(part);
+                        } catch (IOException ignored) {}
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .whenComplete((file, error) -> {
+                    synchronized (this) {
+                        downloads.remove(url);
+                        if (error != null) failures.put(url, clock.getAsLong());
+                    }
+                    if (error != null) {
+                        result.completeExceptionally(error);
+                    } else {
+                        result.complete(file);
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Download in the background the images of some HTML which are not in the cache yet
+     *
+     * @param html the HTML
+     */
+    public void prefetch(String html) {
+        Matcher matcher = IMAGE_URL.matcher(html);
+        while (matcher.find()) fetch(unescape(matcher.group(4)));
+    }
+
+    /**
+     * Point the images of some HTML to their copy in the cache. The images not in the cache keep their URL and are
+     * downloaded in the background for the next time.
+     *
+     * @param html the HTML of the preview
+     * @return the HTML with the URLs of the cached images replaced by the URIs of their copies
+     */
+    public String localize(String html) {
+        if (!enabled) return html;
+
+        Matcher matcher = IMAGE_URL.matcher(html);
+        if (!matcher.find()) return html;
+
+        StringBuilder localized = new StringBuilder(html.length());
+        do {
+            String url = unescape(matcher.group(4));
+            Path cached = cached(url);
+            if (cached != null) {
+                matcher.appendReplacement(localized, Matcher.quoteReplacement(
+                        matcher.group(1) + matcher.group(2) + matcher.group(3) + cached.toUri() + matcher.group(3)));
+            } else {
+                fetch(url);
+            }
+        } while (matcher.find());
+        matcher.appendTail(localized);
+        return localized.toString();
+    }
+
+    /**
+     * Return the thumbnail of an image, decoded from its copy which is downloaded first if needed
+     *
+     * @param url the URL of the image
+     * @return the thumbnail, null if the URL is not an image that could be downloaded
+     */
+    public synchronized CompletableFuture<Image> thumbnail(String url) {
+        if (url == null || !(url.startsWith("http://") || url.startsWith("https://"))) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Image> thumbnail = thumbnails.get(url);
+        if (thumbnail == null || thumbnail.isCompletedExceptionally()) {
+            thumbnail = fetch(url).handleAsync((file, error) -> {
+                if (error != null) return null;
+                Image image = new Image(file.toUri().toString(), THUMBNAIL_SIZE, THUMBNAIL_SIZE, true, true);
+                return image.isError() ? null : image;
+            });
+            thumbnails.put(url, thumbnail);
+        }
+        return thumbnail;
+    }
+
+    /**
+     * Move a downloaded image in the cache, then delete the least recently used images until the cache fits
+     */
+    private synchronized Path downloaded(String url, Path part, String extension) throws IOException {
+        String key = key(url);
+        Path file = folder.resolve(key + extension);
+        Files.move(part, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Entry old = entries.remove(key);
+        if (old != null) {
+            size -= old.size();
+            if (!old.file().equals(file)) Files.deleteIfExists(old.file());
+        }
+        Entry entry = new Entry(file, Files.size(file));
+        entries.put(key, entry);
+        touched.add(key);
+        size += entry.size();
+        evict();
+        return file;
+    }
+
+    private void evict() {
+        List<String> evicted = new ArrayList<>();
+        for (Map.Entry<String, Entry> eldest : entries.entrySet()) {
+            if (size <= maxSize || entries.size() - evicted.size() == 1) break; // the last image is kept even if too big
+            evicted.add(eldest.getKey());
+            size -= eldest.getValue().size();
+            try {
+                Files.deleteIfExists(eldest.getValue().file());
+            } catch (IOException e) {
+                LOGGER.log(System.Logger.Level.WARNING, "An image could not be removed from the cache", e);
+            }
+        }
+        evicted.forEach(key -> {
+            entries.remove(key);
+            touched.remove(key);
+        });
+    }
+
+    /**
+     * @return the name of the copy of an image, without extension
+     */
+    private static String key(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(url.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+
+    private static String key(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.indexOf('.');
+        return dot < 0 ? name : name.substring(0, dot);
+    }
+
+    /**
+     * @return the extension of the copy of an image, from its URL or else from its content type
+     */
+    private static String extension(String url, String contentType) {
+        String path = URI.create(url).getPath();
+        int dot = path == null ? -1 : path.lastIndexOf('.');
+        if (dot >= 0 && dot > path.lastIndexOf('/')) {
+            String extension = path.substring(dot).toLowerCase(Locale.ROOT);
+            if (EXTENSIONS.containsValue(extension) || extension.equals(".jpeg")) return extension;
+        }
+        String type = contentType.split(";")[0].trim().toLowerCase(Locale.ROOT);
+        return EXTENSIONS.getOrDefault(type, "");
+    }
+
+    /**
+     * @return the URL written in an HTML attribute, where &amp; is escaped
+     */
+    private static String unescape(String url) {
+        return url.replace("&amp;", "&");
+    }
+}
@@ -0,0 +1,324 @@
+package ch.clic.newsmaker;
+
+import java.util.AbstractList;
+import java.util.ConcurrentModificationException;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SplittableRandom;
+
+/**
+ * A list kept in a balanced order-statistic tree, with a handle on the node of each element.
+ * <p>
+ * The tree is a treap ordered by position: each node knows the size of its subtree and its parent, so the element at
+ * an index is found from the root and the index of an element is found from its node, both in O(log n). Inserting,
+ * removing and moving an element are O(log n) too, instead of the linear shifts and scans of an
+ * <code>ArrayList</code>. The nodes are found by identity, an element can only be once in the list.
+ *
+ * @param <E> the type of the elements
+ */
+public final class IndexedTreeList<E> extends AbstractList<E> {
+
+    private static final class Node<E> {
+        private E element;
+        private final int priority; // the heap order of the treap, a parent has a higher priority than its children
+        private Node<E> left;
+        private Node<E> right;
+        private Node<E> parent;
+        private int size = 1; // the number of nodes of the subtree
+
+        private Node(E element, int priority) {
+            this.element = element;
+            this.priority = priority;
+        }
+    }
+
+    private final Map<E, Node<E>> nodes = new IdentityHashMap<>(); // the node of each element
+    private final SplittableRandom random = new SplittableRandom();
+    private Node<E> root;
+
+    @Override
+    public int size() {
+        return size(root);
+    }
+
+    @Override
+    public E get(int index) {
+        checkIndex(index, size());
+        return node(index).element;
+    }
+
+    @Override
+    public E set(int index, E element) {
+        checkIndex(index, size());
+        Node<E> node = node(index);
+        E old = node.element;
+        if (old == element) return old;
+        if (nodes.containsKey(element)) throw new IllegalArgumentException("The element is already in the list");
+
+        nodes.remove(old);
+        nodes.put(element, node);
+        node.element = element;
+        return old;
+    }
+
+    /**
+     * Insert an element
+     *
+     * @param index the index of the element once inserted
+     * @param element the element, not already in the list
+     * @throws IllegalArgumentException if the element is already in the list
+     */
+    @Override
+    public void add(int index, E element) {
+        if (index < 0 || index > size()) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+        if (nodes.containsKey(element)) throw new IllegalArgumentException("The element is already in the list");
+
+        Node<E> node = new Node<>(element, random.nextInt());
+        nodes.put(element, node);
+        insert(node, index);
+        modCount++;
+    }
+
+    @Override
+    public E remove(int index) {
+        checkIndex(index, size());
+        Node<E> node = node(index);
+        nodes.remove(node.element);
+        unlink(node);
+        modCount++;
+        return node.element;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Node<E> node = nodes.remove(o);
+        if (node == null) return false;
+
+        unlink(node);
+        modCount++;
+        return true;
+    }
+
+    /**
+     * Move an element to another index, the elements between the two indexes are shifted by one
+     *
+     * @param from the index of the element
+     * @param to the index of the element once moved
+     */
+    public void move(int from, int to) {
+        checkIndex(from, size());
+        checkIndex(to, size());
+        if (from == to) return;
+
+        Node<E> node = node(from);
+        unlink(node);
+        insert(node, to);
+        modCount++;
+    }
+
+    @Override
+    public int indexOf(Object o) {
+        Node<E> node = nodes.get(o);
+        return node == null ? -1 : rank(node);
+    }
+
+    @Override
+    public int lastIndexOf(Object o) {
+        return indexOf(o);
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return nodes.containsKey(o);
+    }
+
+    @Override
+    public void clear() {
+        root = null;
+        nodes.clear();
+        modCount++;
+    }
+
+    /**
+     * @return an iterator going through the tree in order, each step is O(1) amortized
+     */
+    @Override
+    public Iterator<E> iterator() {
+        return new Iterator<>() {
+            private Node<E> next = first(root);
+            private Node<E> last; // the node returned by the last call to next, null once removed
+            private int expectedModCount = modCount;
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public E next() {
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+                if (next == null) throw new NoSuchElementException();
+
+                last = next;
+                next = successor(next);
+                return last.element;
+            }
+
+            @Override
+            public void remove() {
+                if (last == null) throw new IllegalStateException();
+                if (modCount != expectedModCount) throw new ConcurrentModificationException();
+
+                IndexedTreeList.this.remove(last.element);
+                last = null;
+                expectedModCount = modCount;
+            }
+        };
+    }
+
+    private static int size(Node<?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+    }
+
+    /**
+     * @return the node at an index, which must be in the list
+     */
+    private Node<E> node(int index) {
+        Node<E> node = root;
+        while (true) {
+            int leftSize = size(node.left);
+            if (index < leftSize) {
+                node = node.left;
+            } else if (index == leftSize) {
+                return node;
+            } else {
+                index -= leftSize + 1;
+                node = node.right;
+            }
+        }
+    }
+
+    /**
+     * @return the index of a node of the tree
+     */
+    private static int rank(Node<?> node) {
+        int rank = size(node.left);
+        for (; node.parent != null; node = node.parent) {
+            if (node == node.parent.right) rank += size(node.parent.left) + 1;
+        }
+        return rank;
+    }
+
+    private static <E> Node<E> first(Node<E> node) {
+        if (node == null) return null;
+        while (node.left != null) node = node.left;
+        return node;
+    }
+
+    private static <E> Node<E> successor(Node<E> node) {
+        if (node.right != null) return first(node.right);
+        while (node.parent != null && node == node.parent.right) node = node.parent;
+        return node.parent;
+    }
+
+    /**
+     * Insert a detached node as a leaf at its index, then rotate it up to its place in the heap order
+     */
+    private void insert(Node<E> node, int index) {
+        if (root == null) {
+            root = node;
+            return;
+        }
+
+        Node<E> parent = root;
+        while (true) {
+            parent.size++;
+            int leftSize = size(parent.left);
+            if (index <= leftSize) {
+                if (parent.left == null) {
+                    parent.left = node;
+                    break;
+                }
+                parent = parent.left;
+            } else {
+                index -= leftSize + 1;
+                if (parent.right == null) {
+                    parent.right = node;
+                    break;
+                }
+                parent = parent.right;
+            }
+        }
+        node.parent = parent;
+
+        while (node.parent != null && node.priority > node.parent.priority) rotateUp(node);
+    }
+
+    /**
+     * Rotate a node down until it is a leaf, then detach it
+     */
+    private void unlink(Node<E> node) {
+        while (node.left != null || node.right != null) {
+            Node<E> child;
+            if (node.left == null) {
+                child = node.right;
+            } else if (node.right == null) {
+                child = node.left;
+            } else {
+                child = node.left.priority > node.right.priority ? node.left : node.right;
+            }
+            rotateUp(child);
+        }
+
+        Node<E> parent = node.parent;
+        if (parent == null) {
+            root = null;
+        } else {
+            if (parent.left == node) {
+                parent.left = null;
+            } else {
+                parent.right = null;
+            }
+            for (Node<E> ancestor = parent; ancestor != null; ancestor = ancestor.parent) ancestor.size--;
+        }
+        node.parent = null;
+        node.size = 1;
+    }
+
+    /**
+     * Rotate a node above its parent, keeping the order of the nodes
+     */
+    private void rotateUp(Node<E> node) {
+        Node<E> parent = node.parent;
+        Node<E> grandParent = parent.parent;
+
+        if (node == parent.left) {
+            parent.left = node.right;
+            if (node.right != null) node.right.parent = parent;
+            node.right = parent;
+        } else {
+            parent.right = node.left;
+            if (node.left != null) node.left.parent = parent;
+            node.left = parent;
+        }
+        parent.parent = node;
+        node.parent = grandParent;
+
+        if (grandParent == null) {
+            root = node;
+        } else if (grandParent.left == parent) {
+            grandParent.left = node;
+        } else {
+            grandParent.right = node;
+        }
+
+        parent.size = 1 + size(parent.left) + size(parent.right);
+        node.size = 1 + size(node.left) + size(node.right);
+    }
+}
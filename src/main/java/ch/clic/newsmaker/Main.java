@@ -1,10 +1,18 @@
 package ch.clic.newsmaker;
 
+import java.util.Arrays;
+
 /**
  * The Main class is only useful for the javaFX app when running in an executable.
+ * With <code>render</code> as first argument, the files are rendered by <code>NewsMakerCLI</code> without starting the
+ * JavaFX toolkit.
  */
 public class Main {
     public static void main(String[] args) {
-        NewsMaker.main(args);
+        if (args.length > 0 && args[0].equals(NewsMakerCLI.COMMAND)) {
+            NewsMakerCLI.main(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            NewsMaker.main(args);
+        }
     }
 }
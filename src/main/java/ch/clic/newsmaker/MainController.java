@@ -1,42 +1,66 @@
 package ch.clic.newsmaker;
 
-import com.fasterxml.jackson.databind.JsonNode;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import javafx.animation.Animation;
+import javafx.animation.KeyFrame;
+import javafx.animation.PauseTransition;
+import javafx.animation.Timeline;
+import javafx.application.Platform;
 import javafx.beans.property.ObjectProperty;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
+import javafx.concurrent.Worker;
 import javafx.fxml.FXML;
 import javafx.geometry.Insets;
 import javafx.scene.control.*;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.ClipboardContent;
+import javafx.scene.input.Dragboard;
+import javafx.scene.input.TransferMode;
 import javafx.scene.layout.AnchorPane;
 import javafx.scene.layout.HBox;
 import javafx.scene.layout.VBox;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.FileChooser;
 import javafx.scene.web.WebView;
+import javafx.util.Duration;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 
 public class MainController {
 
-    private static final String DEFAULT_SECTION = "NEWS";
-    private static final String SECTION_TAG = "section";
-    private static final String TEMPLATE_TAG = "template";
-    private static final String LANGUAGE_CONSTANT_PROPERTIES_TAG = "language-constant-properties";
-    private static final String LANGUAGE_VARIABLE_PROPERTIES_TAG = "language-variable-properties";
+    private static final System.Logger LOGGER = System.getLogger(MainController.class.getName());
     private static final FileChooser.ExtensionFilter HTML_FILTER = new FileChooser.ExtensionFilter("HTML files", "*.html", "*.HTML");
     private static final FileChooser.ExtensionFilter NMKR_FILTER = new FileChooser.ExtensionFilter("NewsMaker files (.nmkr)", "*.nmkr");
-    private final HashMap<String, List<NewsFieldBean>> fieldSectionMap = new HashMap<>(); //fields are sorted by sections
-    private static Format.Preset defaultPreset;
-    private final ObjectProperty<Format> formatProperty = new SimpleObjectProperty<>();
+    private static final Path AUTOSAVE_FOLDER_PATH = Paths.get("NewsMakerConfig", "autosave");
+    private static final Path IMAGE_CACHE_FOLDER_PATH = Paths.get("NewsMakerConfig", "images");
+    private static final long IMAGE_CACHE_MAX_BYTES = 200L * 1024 * 1024;
+    private static final Path ARCHIVE_INDEX_FOLDER_PATH = Paths.get("NewsMakerConfig", "index");
+    private static final Path ARCHIVE_FOLDER_FILE_PATH = ARCHIVE_INDEX_FOLDER_PATH.resolve("folder.txt"); // the last archive folder
+    private static final String ANY = "any"; // the choice of the archive filters which keeps every hit
+    private static final int ARCHIVE_MAX_HITS = 200;
+    private NewsDocument document; // the fields, the format and the rendering of the newsletter, null until the format is loaded
+    private FormatService formatService; // loads the format and reloads it when its files change
+    private final CompletableFuture<Format> formatLoading; // the format loaded in the background while the window is built
 
     private final ObjectProperty<File> recentFileProperty = new SimpleObjectProperty<>();
     @FXML
@@ -44,58 +68,359 @@ public class MainController {
     public AnchorPane mainPane;
     public TextArea formatEditor;
     @FXML
-    private VBox fields;
-    private String previousSavedHTML;
+    private ListView<NewsFieldBean> fields; // virtualized, the editor of a field is only created when it is first shown
+    private final Map<NewsFieldBean, VBox> fieldEditors = new HashMap<>(); // the editors already created
+    private NewsFieldBean draggedField; // the field dragged by its handle, null if none
+    @FXML
+    private CheckMenuItem livePreviewMenuItem;
+    @FXML
+    private CheckMenuItem previewServerMenuItem;
+    private PreviewServer previewServer; // serves the document to browsers, null if not shared
+    private PauseTransition previewServerDebounce; // coalesces edits before the document is published to the browsers
+    @FXML
+    private CheckMenuItem compactFilesMenuItem; // save in the binary encoding instead of json
+    private final ExecutorService renderExecutor = Executors.newVirtualThreadPerTaskExecutor(); // renders the preview off the FX thread
+    private PauseTransition previewDebounce; // coalesces edits before a live preview render
+    private Future<?> pendingPreview;
+    private NewsDocument.RenderJob pendingPreviewJob;
+    private long previewRevision = -1; // the revision of the document shown in the preview
+    private PreviewPatcher previewPatcher; // updates the fields edited in the preview without loading it again
+    private final ImageCache imageCache = ImageCache.open(IMAGE_CACHE_FOLDER_PATH, IMAGE_CACHE_MAX_BYTES); // the images of the preview
+    private AutosaveJournal autosave; // null if the autosave could not be started
+    @FXML
+    private Tab statsTab;
+    @FXML
+    private TextArea statsArea; // the metrics of the render pipeline
+    private Timeline statsRefresh; // refreshes the metrics while they are shown
+    private PipelineMetrics.Sample previewLoad; // the load of the last HTML handed to the preview
+    private int previewLoadSize;
+    @FXML
+    private Tab archiveTab;
+    @FXML
+    private Label archiveStatus;
+    @FXML
+    private TextField archiveQuery;
+    @FXML
+    private ChoiceBox<String> archiveLanguage;
+    @FXML
+    private ChoiceBox<String> archiveSection;
+    @FXML
+    private ChoiceBox<String> archivePreset;
+    @FXML
+    private ListView<ArchiveIndex.Hit> archiveHits;
+    private ArchiveIndex archive; // the index of the old .nmkr files, null until an archive folder is chosen
+
+    public MainController() {
+
+        // the format is loaded while the window is built and shown
+        formatLoading = CompletableFuture.supplyAsync(() -> {
+            try {
+                formatService = FormatService.recent();
+                Format format = formatService.getFormat();
+                StartupMetrics.mark(StartupMetrics.FORMAT_LOADED);
+                return format;
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }, renderExecutor);
+    }
+
 
-    public MainController() throws IOException {
+    /**
+     * Called right after window creation
+     */
+    @FXML
+    public void initialize() {
+        fields.setCellFactory(listView -> new FieldCell());
+
+        statsRefresh = new Timeline(new KeyFrame(Duration.seconds(1), event -> refreshStats()));
+        statsRefresh.setCycleCount(Animation.INDEFINITE);
+        statsTab.setOnSelectionChanged(event -> {
+            if (statsTab.isSelected()) {
+                refreshStats();
+                statsRefresh.play();
+            } else {
+                statsRefresh.stop();
+            }
+        });
 
-        formatProperty.setValue(Format.recentFormat());
+        archiveQuery.textProperty().addListener(o -> searchArchive());
+        for (ChoiceBox<String> filter : List.of(archiveLanguage, archiveSection, archivePreset)) {
+            filter.getItems().setAll(ANY);
+            filter.setValue(ANY);
+            filter.valueProperty().addListener(o -> searchArchive());
+        }
+        archiveHits.setOnMouseClicked(event -> {
+            if (event.getClickCount() == 2) importArchiveHit();
+        });
+        archiveTab.setOnSelectionChanged(event -> {
+            if (!archiveTab.isSelected()) return;
+            if (archive != null) {
+                updateArchive(); // only the files changed since are read
+            } else if (Files.exists(ARCHIVE_FOLDER_FILE_PATH)) {
+                try {
+                    openArchive(Paths.get(Files.readString(ARCHIVE_FOLDER_FILE_PATH).strip()));
+                } catch (IOException e) {
+                    showError("The last archive folder could not be read", e);
+                }
+            }
+        });
 
-        defaultPreset = formatProperty.get().presets.get(0);
+        previewPatcher = new PreviewPatcher(preview.getEngine(), imageCache);
 
-        fieldSectionMap.put(DEFAULT_SECTION, new ArrayList<>());
-        for (Format.Preset preset : formatProperty.get().presets) {
-            if (preset.sectionTag() != null) {
-                fieldSectionMap.putIfAbsent(preset.sectionTag(), new ArrayList<>());
+        // the time taken by the WebView to lay out the HTML handed to it
+        preview.getEngine().getLoadWorker().stateProperty().addListener((o, oldState, newState) -> {
+            if (previewLoad != null && (newState == Worker.State.SUCCEEDED || newState == Worker.State.FAILED)) {
+                previewLoad.stop(previewLoadSize);
+                previewLoad = null;
             }
-        }
+        });
 
-        previousSavedHTML = buildHTML();
+        mainPane.setDisable(true); // until the format is loaded
+        formatLoading.whenComplete((format, error) -> Platform.runLater(() -> {
+            if (error != null) {
+                showError("The format could not be loaded", error instanceof CompletionException ? error.getCause() : error);
+                Platform.exit();
+            } else {
+                formatLoaded(format);
+            }
+        }));
     }
 
+    /**
+     * Create the document once the format is loaded and render its first preview in the background
+     *
+     * @param format the format of the document
+     */
+    private void formatLoaded(Format format) {
+        document = new NewsDocument(format);
+        fields.setItems(document.getFields()); // follows the fields added, removed and moved in the document
+
+        document.revisionProperty().addListener(o -> documentChanged());
+        document.formatProperty().addListener((o, oldFormat, newFormat) -> {
+            previewDebounce.setDuration(Duration.millis(newFormat.previewDebounceMillis));
+            previewServerDebounce.setDuration(Duration.millis(newFormat.previewDebounceMillis));
+            formatEditor.textProperty().unbindBidirectional(oldFormat.getBaseProperty());
+            formatEditor.textProperty().bindBidirectional(newFormat.getBaseProperty());
+
+            // the editors show the presets and languages of the old format
+            fieldEditors.clear();
+            fields.refresh();
+        });
+
+        formatEditor.textProperty().bindBidirectional(format.getBaseProperty());
+
+        previewDebounce = new PauseTransition(Duration.millis(format.previewDebounceMillis));
+        previewDebounce.setOnFinished(event -> schedulePreviewRender());
+        previewServerDebounce = new PauseTransition(Duration.millis(format.previewDebounceMillis));
+        previewServerDebounce.setOnFinished(event -> {
+            if (previewServer != null) previewServer.publish(document);
+        });
+
+        mainPane.setDisable(false);
+        StartupMetrics.mark(StartupMetrics.DOCUMENT_READY);
+        schedulePreviewRender();
+
+        startAutosave();
+
+        // the templates edited outside NewsMaker are applied without restarting
+        formatService.addListener(new FormatService.Listener() {
+            @Override
+            public void formatReloaded(Format format) {
+                document.formatProperty().setValue(format);
+            }
+
+            @Override
+            public void templateChanged(CompiledTemplate oldTemplate, CompiledTemplate newTemplate) {
+                document.replaceTemplate(oldTemplate, newTemplate);
+            }
+
+            @Override
+            public void reloadFailed(IOException e) {
+                showError("The format could not be reloaded", e);
+            }
+        });
+        try {
+            formatService.watch(Platform::runLater);
+        } catch (IOException e) {
+            // not shown to the user: the format works, only the changes made outside NewsMaker are not reloaded
+            LOGGER.log(System.Logger.Level.WARNING, "The format folder could not be watched", e);
+        }
+    }
 
     /**
-     * Called right after window creation
+     * Show the metrics of the render pipeline and of the startup
+     */
+    private void refreshStats() {
+        StringBuilder text = new StringBuilder(PipelineMetrics.report());
+        text.append(System.lineSeparator()).append("startup:").append(System.lineSeparator());
+        StartupMetrics.phases().forEach((phase, millis) ->
+                text.append("%-16s %8d ms%n".formatted(phase, millis)));
+        statsArea.setText(text.toString());
+    }
+
+    /**
+     * Choose the folder of the old .nmkr files to search, it is indexed in the background
      */
     @FXML
-    public void initialize() {
-        formatEditor.textProperty().bindBidirectional(formatProperty.get().getBaseProperty());
+    protected void chooseArchiveFolder() {
+        DirectoryChooser directoryChooser = new DirectoryChooser();
+        directoryChooser.setTitle("Choose the archive folder");
+        File folder = directoryChooser.showDialog(fields.getScene().getWindow());
+        if (folder == null) return;
+
+        try {
+            Files.createDirectories(ARCHIVE_INDEX_FOLDER_PATH);
+            FileManager.saveInFile(folder.getAbsolutePath(), ARCHIVE_FOLDER_FILE_PATH.toFile());
+        } catch (IOException e) {
+            // not shown to the user: the folder is opened anyway, it is only chosen again at the next start
+            LOGGER.log(System.Logger.Level.WARNING, "The archive folder could not be remembered", e);
+        }
+        openArchive(folder.toPath());
     }
 
+    /**
+     * Open the index of an archive folder, kept in a file named after the folder, and update it
+     */
+    private void openArchive(Path folder) {
+        String name = Integer.toHexString(folder.toAbsolutePath().normalize().toString().hashCode()) + ".index";
+        archive = ArchiveIndex.open(folder, ARCHIVE_INDEX_FOLDER_PATH.resolve(name));
+        archiveHits.getItems().clear();
+        updateArchive();
+    }
 
     /**
-     * Add a field in the default section
+     * Index the files of the archive changed since the last update, in the background
+     */
+    private void updateArchive() {
+        ArchiveIndex index = archive;
+        Format format = document.getFormat();
+        archiveStatus.setText("Indexing " + index.getFolder() + "...");
+        renderExecutor.submit(() -> {
+            try {
+                index.update(format);
+                Platform.runLater(() -> {
+                    if (index != archive) return; // another folder was chosen meanwhile
+                    List<Path> unread = index.getUnreadFiles();
+                    archiveStatus.setText(index.fieldCount() + " fields in " + index.getFolder()
+                            + (unread.isEmpty() ? "" : ", " + unread.size() + (unread.size() == 1 ? " file" : " files") + " could not be read"));
+                    archiveStatus.setTooltip(unread.isEmpty() ? null : new Tooltip(
+                            unread.stream().map(Path::toString).collect(Collectors.joining("\n"))));
+                    setArchiveFilter(archiveLanguage, index.getLanguages());
+                    setArchiveFilter(archiveSection, index.getSections());
+                    setArchiveFilter(archivePreset, index.getPresets());
+                    searchArchive();
+                });
+            } catch (IOException | UncheckedIOException e) {
+                Platform.runLater(() -> {
+                    archiveStatus.setText("The archive could not be indexed");
+                    showError("The archive could not be indexed", e);
+                });
+            }
+        });
+    }
+
+    private void setArchiveFilter(ChoiceBox<String> filter, List<String> values) {
+        String value = filter.getValue();
+        List<String> items = new ArrayList<>();
+        items.add(ANY);
+        items.addAll(values);
+        filter.getItems().setAll(items);
+        filter.setValue(items.contains(value) ? value : ANY);
+    }
+
+    /**
+     * Show the fields of the archive matching the query and the filters
+     */
+    private void searchArchive() {
+        if (archive == null) return;
+        archiveHits.getItems().setAll(archive.search(archiveQuery.getText(), filterValue(archiveLanguage),
+                filterValue(archiveSection), filterValue(archivePreset), ARCHIVE_MAX_HITS));
+    }
+
+    private static String filterValue(ChoiceBox<String> filter) {
+        return ANY.equals(filter.getValue()) ? null : filter.getValue();
+    }
+
+    /**
+     * Add the field of the archive selected in the hits at the end of its section
      */
     @FXML
-    protected void addFieldButtonClick(){
-        NewsFieldBean fieldBean = createNewsFieldBean(DEFAULT_SECTION);
-        fieldBean.updateWithPreset(defaultPreset);
+    protected void importArchiveHit() {
+        ArchiveIndex.Hit hit = archiveHits.getSelectionModel().getSelectedItem();
+        if (hit == null) return;
+
+        try {
+            if (!hit.isCurrent()) {
+                // the field may no longer be at the index of the hit
+                Alert alert = new Alert(Alert.AlertType.INFORMATION,
+                        "The file " + hit.file().getFileName() + " changed since it was indexed, search the field again.",
+                        ButtonType.OK);
+                alert.setTitle("Archive");
+                alert.showAndWait();
+                updateArchive();
+                return;
+            }
+            NewsFieldBean fieldBean = document.importField(hit.file(), hit.field());
+            prefetchImages(fieldBean);
+            fields.scrollTo(fieldBean);
+        } catch (IOException e) {
+            showError("The field could not be added", e);
+        }
     }
 
     /**
-     * Create a new field bean with bindings and corresponding JavaFX nodes
-     *
-     * @param section the section in which the bean belong
-     * @return a new <code>NewsFieldBean</code>
+     * Offer to recover the work lost when the application was killed, then start the autosave of the document
+     */
+    private void startAutosave() {
+        if (AutosaveJournal.hasRecoverableWork(AUTOSAVE_FOLDER_PATH)) {
+            Alert alert = new Alert(Alert.AlertType.CONFIRMATION,
+                    "NewsMaker was not closed properly. Do you want to recover the unsaved work?",
+                    ButtonType.YES, ButtonType.NO);
+            alert.setTitle("Recover unsaved work");
+            alert.showAndWait();
+
+            if (alert.getResult() == ButtonType.YES) {
+                fieldEditors.clear();
+                try {
+                    AutosaveJournal.recover(document, AUTOSAVE_FOLDER_PATH);
+                } catch (IOException e) {
+                    showError("The unsaved work could not be fully recovered", e);
+                }
+            }
+        }
+
+        try {
+            autosave = AutosaveJournal.start(document, AUTOSAVE_FOLDER_PATH);
+        } catch (IOException e) {
+            showError("The autosave could not be started", e);
+        }
+    }
+
+    /**
+     * Stop the autosave and delete its files, called when the application is closed normally
      */
-    private NewsFieldBean createNewsFieldBean(String section) {
-        NewsFieldBean fieldBean = new NewsFieldBean(defaultPreset, formatProperty.get());
-        fieldSectionMap.putIfAbsent(section, new ArrayList<>());
-        fieldSectionMap.get(section).add(fieldBean);
-        fieldBean.setSection(section);
-        fieldBean.formatProperty.bind(formatProperty);
-        fields.getChildren().add(createField(fieldBean));
-        return fieldBean;
+    public void discardAutosave() {
+        if (autosave != null) autosave.discard();
+    }
+
+    /**
+     * Stop the autosave, keeping the unsaved work to be recovered at the next start
+     */
+    public void closeAutosave() {
+        if (autosave != null) autosave.close();
+    }
+
+
+    /**
+     * Add a field in the default section
+     */
+    @FXML
+    protected void addFieldButtonClick(){
+        NewsFieldBean fieldBean = document.createField(NewsDocument.DEFAULT_SECTION);
+        fieldBean.updateWithPreset(document.getDefaultPreset());
+        prefetchImages(fieldBean);
+        fields.scrollTo(fieldBean);
     }
 
     /**
@@ -106,7 +431,32 @@ public class MainController {
         FileChooser fileChooser = createFileChooser("Export file", HTML_FILTER);
         File file = fileChooser.showSaveDialog(fields.getScene().getWindow());
         if (file == null) return;
-        FileManager.saveInFile(buildHTML(), file);
+
+        try {
+            FileManager.saveInFile(document.buildHTML(), file);
+        } catch (IOException e) {
+            showError("The file could not be exported", e);
+        }
+    }
+
+    /**
+     * Export one HTML file for each language, named after the chosen file
+     */
+    @FXML
+    protected void exportLanguages() {
+        FileChooser fileChooser = createFileChooser("Export each language", HTML_FILTER);
+        File file = fileChooser.showSaveDialog(fields.getScene().getWindow());
+        if (file == null) return;
+
+        // the editions are captured here and rendered in the background
+        Map<String, NewsDocument.RenderJob> jobs = document.createLanguageJobs();
+        renderExecutor.submit(() -> {
+            try {
+                NewsDocument.exportLanguages(jobs, file.toPath());
+            } catch (IOException e) {
+                Platform.runLater(() -> showError("The languages could not be exported", e));
+            }
+        });
     }
 
     /**
@@ -119,183 +469,227 @@ public class MainController {
         if (file == null) return;
 
         try {
-            formatProperty.setValue(Format.fromJSON(file));
+            document.formatProperty().setValue(Format.fromJSON(file));
         } catch (Exception ignored) {} // the file exist because it is chosen by the user via dialog
     }
 
     /**
      *  Quick way to save if already saved before
+     *
+     * @return true if the document is saved, false if the user canceled the dialog or the file could not be written
      */
     @FXML
-    public void save() throws IOException {
-        if (hasNotChanged()) return;
+    public boolean save() {
+        if (hasNotChanged()) return true;
 
+        boolean saved;
         if (recentFileProperty.isNotNull().get()) {
-            saveInFile(recentFileProperty.get());
+            saved = saveInFile(recentFileProperty.get());
         } else {
-            saveAs();
+            saved = saveAs();
+        }
+
+        try {
+            document.getFormat().saveFormat();
+        } catch (IOException e) {
+            showError("The format could not be saved", e);
         }
-        formatProperty.get().saveFormat();
+        return saved;
     }
 
     /**
      * The user can choose a file by a dialog and save the current edition of the document
+     *
+     * @return true if the document is saved, false if the user canceled the dialog or the file could not be written
      */
     @FXML
-    public void saveAs() {
+    public boolean saveAs() {
         FileChooser fileChooser = createFileChooser("Save as", NMKR_FILTER);
         File file = fileChooser.showSaveDialog(fields.getScene().getWindow());
-        if (file == null) return;
+        if (file == null) return false;
+        if (!saveInFile(file)) return false;
         recentFileProperty.setValue(file);
-        saveInFile(file);
+        return true;
     }
 
     /**
-     * Return true if the content of the HTML changed, else false
-     * @return true if the content of the HTML changed, else false
+     * Return true if the document did not change since it was last saved or opened, else false
+     * @return true if the document did not change since it was last saved or opened, else false
      */
     public boolean hasNotChanged() {
-        return buildHTML().equals(this.previousSavedHTML);
+        return document == null || document.hasNotChanged();
     }
 
     /**
-     * Save all <code>NewsFieldBean</code> object in a json file (.nmkr)
+     * Save all <code>NewsFieldBean</code> object in a .nmkr file, in json or in the compact binary encoding
      *
      * @param file the file where to save the beans
+     * @return true if the file was saved, else false
      */
-    private void saveInFile(File file) {
-        ObjectMapper objectMapper = new ObjectMapper();
-        ObjectNode rootNode = objectMapper.createObjectNode();
-
-        // save each section
-        for (String sectionTag : fieldSectionMap.keySet()) {
-            ArrayNode sectionNode = objectMapper.createArrayNode();
-
-            // each field of the section
-            for (NewsFieldBean newsFieldBean : fieldSectionMap.get(sectionTag)) {
-                ObjectNode newsFieldBeanNode = objectMapper.createObjectNode();
-                newsFieldBeanNode.put(SECTION_TAG, newsFieldBean.getSection());
-                newsFieldBeanNode.put(TEMPLATE_TAG, newsFieldBean.getTemplate());
-
-                // save language-constant properties
-                ObjectNode languageConstantPropertiesNode = objectMapper.createObjectNode();
-                newsFieldBean.getLanguageConstantPropertiesMap()
-                        .forEach((tag, value) -> languageConstantPropertiesNode.put(tag.name(), value.get()));
-
-                newsFieldBeanNode.set(LANGUAGE_CONSTANT_PROPERTIES_TAG, languageConstantPropertiesNode);
-
-                // save language-variable properties
-                ObjectNode languageVariablePropertiesNode = objectMapper.createObjectNode();
-
-                for (String language : formatProperty.get().languages) {
-                    ObjectNode languageNode = objectMapper.createObjectNode();
-                    newsFieldBean.getLanguageVariablePropertiesMap()
-                            .get(language)
-                            .forEach((tag, value) -> languageNode.put(tag.name(), value.get()));
-                    languageVariablePropertiesNode.set(language, languageNode);
-                }
-
-                newsFieldBeanNode.set(LANGUAGE_VARIABLE_PROPERTIES_TAG, languageVariablePropertiesNode);
-                sectionNode.add(newsFieldBeanNode);
-            }
-            rootNode.set(sectionTag, sectionNode);
+    private boolean saveInFile(File file) {
+        try {
+            document.save(file.toPath(), compactFilesMenuItem.isSelected() ? NmkrFile.Encoding.BINARY : NmkrFile.Encoding.JSON);
+        } catch (IOException e) {
+            showError("The file could not be saved", e);
+            return false;
         }
-
-        FileManager.saveInFile(rootNode.toPrettyString(), file);
-        previousSavedHTML = buildHTML();
+        return true;
     }
 
     /**
-     * Open a .nmkr file
+     * Show an error dialog
      *
-     * @throws IOException if the file is corrupted
+     * @param message what failed
+     * @param e the cause of the failure
+     */
+    private void showError(String message, Throwable e) {
+        Alert alert = new Alert(Alert.AlertType.ERROR, e.getMessage(), ButtonType.OK);
+        alert.setTitle("Error");
+        alert.setHeaderText(message);
+        alert.showAndWait();
+    }
+
+    /**
+     * Open a .nmkr file. If the file is corrupted, the fields read before the error are kept as an unsaved document,
+     * not tied to the file, so saving them does not overwrite it.
      */
     @FXML
-    public void openFile() throws IOException {
+    public void openFile() {
         FileChooser fileChooser = createFileChooser("Open file", NMKR_FILTER);
         File file = fileChooser.showOpenDialog(fields.getScene().getWindow());
 
         if (file == null) return;
 
-        recentFileProperty.setValue(file);
-
-        fieldSectionMap.forEach((section, list) -> list.clear());      //clear sections
-        fields.getChildren().clear();                                  //clear javaFX nodes linked to beans
-
-        ObjectMapper objectMapper = new ObjectMapper();
-        JsonNode rootNode = objectMapper.readTree(file);
-
-        rootNode.fieldNames().forEachRemaining(sectionTag -> {
-            for (JsonNode newsNode : rootNode.get(sectionTag)) {
-                NewsFieldBean newsFieldBean = createNewsFieldBean(sectionTag);
-
-                newsFieldBean.setSection(newsNode.get(SECTION_TAG).asText());
-                newsFieldBean.setTemplate(newsNode.get(TEMPLATE_TAG).asText());
-
-                // create JSON nodes for language constant properties (like URL, image, ...)
-                JsonNode languageConstantNode = newsNode.get(LANGUAGE_CONSTANT_PROPERTIES_TAG);
+        fieldEditors.clear();                                          //clear javaFX nodes linked to beans
 
-                languageConstantNode.fieldNames()
-                        .forEachRemaining(param -> {
-                            Format.Tag tag = new Format.Tag(param, false);
-                            newsFieldBean.setPropertyValue(tag, languageConstantNode.get(param).asText());
-                        });
-
-                // create JSON for language variable properties (like description, titles, date, ...)
-                JsonNode languageVariableNode = newsNode.get(LANGUAGE_VARIABLE_PROPERTIES_TAG);
-
-                languageVariableNode.fieldNames().forEachRemaining(
-                        language -> languageVariableNode.get(language).fieldNames().forEachRemaining(
-                                param -> {
-                                    Format.Tag tag = new Format.Tag(param, true);
-                                    newsFieldBean.setPropertyValue(tag, language, languageVariableNode.get(language).get(param).asText());
-                                }
-                        )
-                );
-            }
-        });
-
-        previousSavedHTML = buildHTML();
+        try {
+            compactFilesMenuItem.setSelected(NmkrFile.encodingOf(file.toPath()) == NmkrFile.Encoding.BINARY); // saved back in the same encoding
+            document.open(file.toPath());
+            recentFileProperty.setValue(file);
+        } catch (IOException e) {
+            recentFileProperty.setValue(null);
+            showError("The file could not be opened completely", e);
+        }
     }
 
+    /**
+     * Render the document on a background thread and show it in the preview once rendered
+     */
     @FXML
     public void refreshPreview() {
-        preview.getEngine().loadContent(buildHTML());
+        schedulePreviewRender();
     }
 
     /**
-     * Build the HTML for a given section in a given language
-     * @param section the section
-     * @param language the language
-     * @return a String containing the HTML of the section
+     * Enable or disable the live preview, which refreshes the preview after each edit
      */
-    private String buildSectionHTML(String section, String language) {
+    @FXML
+    protected void toggleLivePreview() {
+        if (livePreviewMenuItem.isSelected()) {
+            previewDebounce.playFromStart();
+        } else {
+            previewDebounce.stop();
+        }
+    }
 
-        StringBuilder stringBuilder = new StringBuilder();
+    /**
+     * Start or stop serving the document to the browsers of the local network, see <code>PreviewServer</code>
+     */
+    @FXML
+    protected void togglePreviewServer() {
+        if (!previewServerMenuItem.isSelected()) {
+            stopPreviewServer();
+            return;
+        }
 
-        for (NewsFieldBean field : fieldSectionMap.get(section)) {
-            stringBuilder.append(field.getHTML(language));
+        try {
+            previewServer = PreviewServer.start(PreviewServer.DEFAULT_PORT);
+        } catch (IOException e) {
+            previewServerMenuItem.setSelected(false);
+            showError("The preview could not be shared", e);
+            return;
         }
+        previewServer.publish(document);
 
-        return stringBuilder.toString();
+        String host;
+        try {
+            host = InetAddress.getLocalHost().getHostAddress();
+        } catch (UnknownHostException e) {
+            host = "localhost";
+        }
+        StringBuilder addresses = new StringBuilder();
+        for (String path : previewServer.getPaths()) {
+            addresses.append("http://").append(host).append(':').append(previewServer.getPort()).append(path).append('\n');
+        }
+        Alert alert = new Alert(Alert.AlertType.INFORMATION, addresses.toString(), ButtonType.OK);
+        alert.setTitle("Preview shared");
+        alert.setHeaderText("The preview can be opened in a browser at:");
+        alert.show();
+    }
 
+    /**
+     * Stop serving the document to the browsers, called when the application is closed
+     */
+    public void stopPreviewServer() {
+        if (previewServer != null) {
+            previewServer.close();
+            previewServer = null;
+        }
     }
 
     /**
-     * Build all the HTML of the file
-     * @return a String containing the HTML of the file
+     * Update the preview. When only the values of the fields shown changed, their HTML is replaced in the page.
+     * Otherwise a render of the current document is submitted to the background executor: a pending render is
+     * cancelled since its result would be stale, and only the finished HTML is handed to the <code>WebView</code> on
+     * the FX thread.
      */
-    private String buildHTML() {
+    private void schedulePreviewRender() {
+        if (document == null) return; // the format is still loading
+        if (previewRevision == document.getRevision() && pendingPreview == null) return;
+
+        if (pendingPreview == null && previewPatcher.patch(document)) {
+            previewRevision = document.getRevision();
+            return;
+        }
+
+        if (pendingPreview != null) pendingPreview.cancel(true);
+
+        NewsDocument.RenderJob job = previewPatcher.prepare(document);
+        pendingPreviewJob = job;
+        pendingPreview = renderExecutor.submit(() -> {
+            String html = imageCache.localize(job.render());
+            Platform.runLater(() -> publishPreview(job, html));
+            return null;
+        });
+    }
+
+    private void publishPreview(NewsDocument.RenderJob job, String html) {
+        if (job != pendingPreviewJob) return; // a newer render is on its way
+
+        pendingPreview = null;
+        pendingPreviewJob = null;
+        previewRevision = job.revision();
+        previewLoad = PipelineMetrics.start(PipelineMetrics.Operation.PREVIEW_LOAD);
+        previewLoadSize = html.length();
+        previewPatcher.show(job, html);
 
-        String base = formatProperty.get().getBase();
+        StartupMetrics.mark(StartupMetrics.FIRST_PREVIEW);
+        StartupMetrics.report();
+    }
 
-        for (String language : formatProperty.get().languages) {
-            for (String section : fieldSectionMap.keySet()) {
-                String sectionHTML = buildSectionHTML(section, language).indent(12);
-                base = base.replace('@'+section.toUpperCase()+'#'+ language.toUpperCase(), sectionHTML);
+    /**
+     * Called after each change of the document
+     */
+    private void documentChanged() {
+        if (previewServer != null) previewServerDebounce.playFromStart();
+        if (livePreviewMenuItem != null && livePreviewMenuItem.isSelected()) {
+            if (pendingPreview != null) {
+                pendingPreview.cancel(true);
+                pendingPreview = null;
+                pendingPreviewJob = null;
             }
+            previewDebounce.playFromStart();
         }
-        return base;
     }
 
     /**
@@ -310,6 +704,39 @@ public class MainController {
         return fc;
     }
 
+    /**
+     * A cell of the fields <code>ListView</code>, showing the editor of its field. A field dragged by its handle and
+     * dropped on a cell takes the place of the field of the cell, in its section.
+     */
+    private class FieldCell extends ListCell<NewsFieldBean> {
+
+        FieldCell() {
+            setOnDragOver(event -> {
+                if (draggedField != null && getItem() != null && getItem() != draggedField) {
+                    event.acceptTransferModes(TransferMode.MOVE);
+                }
+                event.consume();
+            });
+            setOnDragDropped(event -> {
+                NewsFieldBean target = getItem();
+                boolean dropped = draggedField != null && target != null && target != draggedField;
+                if (dropped) {
+                    String section = target.sectionProperty().get();
+                    document.moveField(draggedField, section, document.getFieldSectionMap().get(section).indexOf(target));
+                }
+                event.setDropCompleted(dropped);
+                event.consume();
+            });
+        }
+
+        @Override
+        protected void updateItem(NewsFieldBean fieldBean, boolean empty) {
+            super.updateItem(fieldBean, empty);
+            setText(null);
+            setGraphic(empty || fieldBean == null ? null : fieldEditors.computeIfAbsent(fieldBean, MainController.this::createField));
+        }
+    }
+
     /**
      * Create a JavaFX field component used to bring all the information for a cell
      *
@@ -320,60 +747,59 @@ public class MainController {
 
         TabPane tabPane = new TabPane();
 
-        for (String language : this.formatProperty.get().languages) {
-
-            VBox vBox = new VBox();
-
-            for (Map.Entry<Format.Tag, StringProperty> entry : fieldBean.getLanguageVariablePropertiesMap().get(language).entrySet()) {
-                if (entry.getKey().isBigText()) {
-                    vBox.getChildren().add(createTextWithContent(entry.getKey().presentationName(), entry.getValue()));
-                } else {
-                    vBox.getChildren().add(createFieldWithLabel(entry.getKey().presentationName(), entry.getValue()));
-                }
-            }
-
-            Tab tab = new Tab(language.toLowerCase(), vBox);
+        for (String language : document.getFormat().languages) {
+            Tab tab = new Tab(language.toLowerCase(), createLanguageEditors(fieldBean, language, imageCache));
             tabPane.getTabs().add(tab);
         }
 
         tabPane.tabClosingPolicyProperty().setValue(TabPane.TabClosingPolicy.UNAVAILABLE);
 
         ChoiceBox<String> sectionChoiceBox = new ChoiceBox<>();
-        sectionChoiceBox.setItems(FXCollections.observableArrayList(fieldSectionMap.keySet()));
-        sectionChoiceBox.setValue(DEFAULT_SECTION);
+        sectionChoiceBox.setItems(FXCollections.observableArrayList(document.getFieldSectionMap().keySet()));
+        sectionChoiceBox.setValue(NewsDocument.DEFAULT_SECTION);
         sectionChoiceBox.valueProperty().bindBidirectional(fieldBean.sectionProperty());
 
-        fieldBean.sectionProperty().addListener((o, oldValue, newValue) -> {
-            fieldSectionMap.get(oldValue).remove(fieldBean);
-            fieldSectionMap.get(newValue).add(fieldBean);
-        });
-
         ChoiceBox<Format.Preset> presetChoiceBox = new ChoiceBox<>();
-        presetChoiceBox.setItems(FXCollections.observableArrayList(formatProperty.get().presets));
-        presetChoiceBox.setValue(defaultPreset);
+        presetChoiceBox.setItems(FXCollections.observableArrayList(document.getFormat().presets));
+        presetChoiceBox.setValue(document.getDefaultPreset());
         presetChoiceBox.getSelectionModel().selectedItemProperty().addListener((o, oldValue, newValue) -> {
-            if (newValue != defaultPreset) {
+            if (newValue != document.getDefaultPreset()) {
                 fieldBean.updateWithPreset(newValue);
             } else {
-                fieldBean.setSection(DEFAULT_SECTION);
-                fieldBean.setTemplate(formatProperty.get().defaultNewsTemplate);
+                fieldBean.setSection(NewsDocument.DEFAULT_SECTION);
+                fieldBean.setTemplate(document.getFormat().defaultNewsTemplate);
             }
+            prefetchImages(fieldBean);
+        });
+
+        Label dragHandle = new Label("\u2261");
+        dragHandle.getStyleClass().add("drag-handle");
+        dragHandle.setTooltip(new Tooltip("Drag to move the field"));
+        dragHandle.setOnDragDetected(event -> {
+            Dragboard dragboard = dragHandle.startDragAndDrop(TransferMode.MOVE);
+            ClipboardContent content = new ClipboardContent();
+            content.putString(fieldBean.getSection());
+            dragboard.setContent(content);
+            draggedField = fieldBean;
+            event.consume();
         });
+        dragHandle.setOnDragDone(event -> draggedField = null);
 
         Button upButton = new Button("^");
-        upButton.setOnAction(actionEvent -> moveField(fieldBean, -1));
+        upButton.setOnAction(actionEvent -> document.moveField(fieldBean, -1));
         Button downButton = new Button("^");
-        downButton.setOnAction(actionEvent -> moveField(fieldBean, 1));
+        downButton.setOnAction(actionEvent -> document.moveField(fieldBean, 1));
         downButton.setRotate(180);
 
         VBox vb = new VBox(
                 new HBox(new Label("Section: "), sectionChoiceBox,
                         new Label("Preset: "), presetChoiceBox,
-                        new HBox(upButton, downButton)),
+                        new HBox(upButton, downButton), dragHandle),
                 tabPane);
 
-        for (Map.Entry<Format.Tag, StringProperty> entry : fieldBean.getLanguageConstantPropertiesMap().entrySet()) {
-            vb.getChildren().add(createFieldWithLabel(entry.getKey().presentationName(), entry.getValue()));
+        for (Format.Tag tag : fieldBean.getTags(null)) {
+            vb.getChildren().add(isImage(tag) ? createImageFieldWithLabel(tag.presentationName(), fieldBean.propertyOf(tag, null), imageCache)
+                    : createFieldWithLabel(tag.presentationName(), fieldBean.propertyOf(tag, null)));
         }
 
         vb.getStyleClass().add("field");
@@ -381,8 +807,8 @@ public class MainController {
 
         Button rb = new Button("delete");
         rb.setOnAction(event -> {
-            fieldSectionMap.get(fieldBean.getSection()).remove(fieldBean);
-            fields.getChildren().remove(vb);
+            document.removeField(fieldBean);
+            fieldEditors.remove(fieldBean);
         });
         rb.getStyleClass().add("delete-button");
 
@@ -393,25 +819,26 @@ public class MainController {
 
 
     /**
-     * Move the field up or down on the final HTML file
+     * Create the editors of the values of a field in a language. The editors only write in the field when they are
+     * edited.
      *
-     * @param field the field to move
-     * @param delta the delta (essentially -1 or +1)
+     * @param fieldBean the field
+     * @param language the language of the values
+     * @param images the cache of the thumbnails of the images
+     * @return a VBox with an editor for each value
      */
-    private void moveField(NewsFieldBean field, int delta) {
-        int start = fieldSectionMap.get(field.getSection()).indexOf(field);
-        int index = start + delta;
-        index = crop(index, fieldSectionMap.get(field.getSection()).size()-1);
-
-        if (start == index) return;
-
-        fieldSectionMap.get(field.getSection()).remove(field);
-        fieldSectionMap.get(field.getSection()).add(index, field);
-
-
-    }
-    private int crop(int n, int max) {
-        return n < 0 ? 0 : (Math.min(n, max));
+    static VBox createLanguageEditors(NewsFieldBean fieldBean, String language, ImageCache images) {
+        VBox vBox = new VBox();
+        for (Format.Tag tag : fieldBean.getTags(language)) {
+            if (tag.isBigText()) {
+                vBox.getChildren().add(createTextWithContent(tag.presentationName(), fieldBean.propertyOf(tag, language)));
+            } else if (isImage(tag)) {
+                vBox.getChildren().add(createImageFieldWithLabel(tag.presentationName(), fieldBean.propertyOf(tag, language), images));
+            } else {
+                vBox.getChildren().add(createFieldWithLabel(tag.presentationName(), fieldBean.propertyOf(tag, language)));
+            }
+        }
+        return vBox;
     }
 
     /**
@@ -421,7 +848,7 @@ public class MainController {
      * @param toBind the StringProperty to bind
      * @return the HBox
      */
-    private HBox createFieldWithLabel(String text, StringProperty toBind) {
+    private static HBox createFieldWithLabel(String text, StringProperty toBind) {
         TextField tf = new TextField();
         tf.textProperty().bindBidirectional(toBind);
         HBox hb =  new HBox(new Label(text), tf);
@@ -429,10 +856,67 @@ public class MainController {
         return hb;
     }
 
-    private TextArea createTextWithContent(String text, StringProperty toBind) {
+    /**
+     * Create a HBox with a Label, a TextField with textProperty bind to a StringProperty and the thumbnail of the image
+     * whose URL is typed in the TextField
+     *
+     * @param text the texte of the label
+     * @param toBind the StringProperty to bind
+     * @param images the cache of the thumbnails
+     * @return the HBox
+     */
+    private static HBox createImageFieldWithLabel(String text, StringProperty toBind, ImageCache images) {
+        HBox hb = createFieldWithLabel(text, toBind);
+        TextField tf = (TextField) hb.getChildren().get(1);
+
+        ImageView thumbnail = new ImageView();
+        thumbnail.setFitWidth(ImageCache.THUMBNAIL_SIZE);
+        thumbnail.setFitHeight(ImageCache.THUMBNAIL_SIZE);
+        thumbnail.setPreserveRatio(true);
+
+        // the image is only downloaded once the URL is no longer typed
+        PauseTransition typing = new PauseTransition(Duration.millis(500));
+        typing.setOnFinished(event -> {
+            String url = tf.getText();
+            images.thumbnail(url).thenAccept(image -> Platform.runLater(() -> {
+                if (Objects.equals(url, tf.getText())) thumbnail.setImage(image);
+            }));
+        });
+        tf.textProperty().addListener(o -> typing.playFromStart());
+        typing.playFromStart();
+
+        hb.getChildren().add(thumbnail);
+        return hb;
+    }
+
+    /**
+     * @param tag a tag of a field
+     * @return true if the value of the tag is the URL of an image, like NEWS_IMAGE_URL
+     */
+    private static boolean isImage(Format.Tag tag) {
+        return tag.name().contains("IMAGE");
+    }
+
+    /**
+     * Download in the background the images of a field which are not in the cache, after a preset was applied
+     *
+     * @param fieldBean the field
+     */
+    private void prefetchImages(NewsFieldBean fieldBean) {
+        for (String language : document.getFormat().languages) imageCache.prefetch(fieldBean.getHTML(language));
+    }
+
+    /**
+     * Create a TextArea with textProperty bind to a StringProperty
+     *
+     * @param text the prompt shown while the text is empty, never written in the property
+     * @param toBind the StringProperty to bind
+     * @return the TextArea
+     */
+    private static TextArea createTextWithContent(String text, StringProperty toBind) {
         TextArea ta = new TextArea();
         ta.textProperty().bindBidirectional(toBind);
-        ta.textProperty().set(text);
+        ta.setPromptText(text);
         return ta;
     }
 }
\ No newline at end of file
@@ -0,0 +1,786 @@
+package ch.clic.newsmaker;
+
+import javafx.beans.InvalidationListener;
+import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
+import javafx.beans.property.SimpleObjectProperty;
+import javafx.collections.ObservableList;
+import javafx.collections.ObservableListBase;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * A newsletter: the fields of every section, the format used to render them and the rendering of the HTML.
+ * <p>
+ * The document only uses the properties and collections of <code>javafx.base</code>, not the JavaFX toolkit, so it
+ * can be used without a display. The <code>MainController</code> is a view over it.
+ */
+public class NewsDocument {
+
+    /**
+     * Notified of the changes of the structure of the document. The edits of a field are notified by its revision.
+     */
+    public interface Listener {
+
+        default void fieldAdded(NewsFieldBean field) {}
+
+        default void fieldRemoved(NewsFieldBean field) {}
+
+        /**
+         * @param field the moved field
+         * @param delta the number of positions the field moved by in its section
+         */
+        default void fieldMoved(NewsFieldBean field, int delta) {}
+
+        /**
+         * All fields were replaced, after the document was cleared or opened
+         */
+        default void documentReplaced() {}
+
+        default void documentSaved() {}
+    }
+
+    public static final String DEFAULT_SECTION = "NEWS";
+    private static final int SECTION_INDENT = 12; // indentation of the sections HTML in the base template
+
+    private final Map<String, IndexedTreeList<NewsFieldBean>> fieldSectionMap = new LinkedHashMap<>(); //fields are sorted by sections
+    private final FieldsView fields = new FieldsView(); // all the fields, in the order of the sections
+    private final ObjectProperty<Format> formatProperty = new SimpleObjectProperty<>();
+    private Format.Preset defaultPreset;
+
+    private final ReadOnlyLongWrapper revision = new ReadOnlyLongWrapper(); // incremented on every change of the document
+    private long savedRevision; // the revision of the document when it was last saved or opened
+    private final InvalidationListener baseListener = o -> documentChanged();
+
+    private int lastHTMLLength; // used to pre-size the buffer of the next document build
+    private final Map<String, Long> sectionRevisions = new HashMap<>(); // incremented on every change of a section
+    private final Map<String, RenderJob.SectionHTML> sectionHTMLCache = new ConcurrentHashMap<>(); // rendered HTML of each section by language
+    private final Map<String, RenderJob.SectionHTML> markedHTMLCache = new ConcurrentHashMap<>(); // the same with the fields marked for the preview
+    private String cachedHTML; // the last built document
+    private long cachedHTMLRevision = -1; // the revision of the document when cachedHTML was built
+
+    private final List<Listener> listeners = new ArrayList<>();
+    private boolean loading; // true while a file is opened, the listeners are only notified once it is loaded
+
+    /**
+     * Create an empty document
+     *
+     * @param format the format of the document
+     */
+    public NewsDocument(Format format) {
+        formatProperty.setValue(format);
+        defaultPreset = format.presets.get(0);
+
+        format.getBaseProperty().addListener(baseListener);
+        formatProperty.addListener((o, oldFormat, newFormat) -> {
+            oldFormat.getBaseProperty().removeListener(baseListener);
+            newFormat.getBaseProperty().addListener(baseListener);
+            defaultPreset = newFormat.presets.get(0);
+            clearHTMLCache();
+        });
+
+        fieldSectionMap.put(DEFAULT_SECTION, new IndexedTreeList<>());
+        for (Format.Preset preset : format.presets) {
+            if (preset.sectionTag() != null) {
+                fieldSectionMap.putIfAbsent(preset.sectionTag(), new IndexedTreeList<>());
+            }
+        }
+
+        markSaved();
+    }
+
+    /**
+     * Load a document from a .nmkr file
+     *
+     * @param format the format of the document
+     * @param file the .nmkr file
+     * @return the document
+     * @throws IOException if the file could not be read or is corrupted
+     */
+    public static NewsDocument load(Format format, Path file) throws IOException {
+        NewsDocument document = new NewsDocument(format);
+        document.open(file);
+        return document;
+    }
+
+    public ObjectProperty<Format> formatProperty() {
+        return formatProperty;
+    }
+
+    public Format getFormat() {
+        return formatProperty.get();
+    }
+
+    public Format.Preset getDefaultPreset() {
+        return defaultPreset;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the fields of the document sorted by sections, read only
+     */
+    public Map<String, List<NewsFieldBean>> getFieldSectionMap() {
+        return Collections.unmodifiableMap(fieldSectionMap);
+    }
+
+    /**
+     * All the fields in a single list, the fields of each section following each other in the order of the sections.
+     * The list follows the fields added, removed and moved, and can be shown as is by a <code>ListView</code>.
+     *
+     * @return the fields of the document, read only
+     */
+    public ObservableList<NewsFieldBean> getFields() {
+        return fields;
+    }
+
+    /**
+     * The revision is incremented on every change of the document: field edits, fields added, removed or moved,
+     * base template edits and format changes
+     *
+     * @return the revision of the document
+     */
+    public ReadOnlyLongProperty revisionProperty() {
+        return revision.getReadOnlyProperty();
+    }
+
+    public long getRevision() {
+        return revision.get();
+    }
+
+    /**
+     * Return true if the document did not change since it was last saved or opened, else false
+     * @return true if the document did not change since it was last saved or opened, else false
+     */
+    public boolean hasNotChanged() {
+        return revision.get() == savedRevision;
+    }
+
+    /**
+     * Remember the current revision as the saved one
+     */
+    public void markSaved() {
+        savedRevision = revision.get();
+    }
+
+    /**
+     * Forget the saved revision, the document is then considered changed until it is saved again
+     */
+    public void markUnsaved() {
+        savedRevision = -1;
+    }
+
+    /**
+     * Create a new field in a section, with the values of the default preset
+     *
+     * @param section the section in which the field belong
+     * @return the new field
+     */
+    public NewsFieldBean createField(String section) {
+        NewsFieldBean fieldBean = new NewsFieldBean(defaultPreset, formatProperty.get());
+        fieldSectionMap.computeIfAbsent(section, s -> new IndexedTreeList<>()).add(fieldBean);
+        fieldBean.setSection(section);
+        fieldBean.formatProperty.bind(formatProperty);
+        fieldBean.revisionProperty().addListener(o -> invalidateSection(fieldBean.sectionProperty().get()));
+        fieldBean.sectionProperty().addListener((o, oldValue, newValue) -> {
+            int from = fields.indexOf(fieldBean, oldValue);
+            fieldSectionMap.get(oldValue).remove(fieldBean);
+            fieldSectionMap.computeIfAbsent(newValue, s -> new IndexedTreeList<>()).add(fieldBean);
+            invalidateSection(oldValue);
+            invalidateSection(newValue);
+            fields.moved(from, fieldBean);
+        });
+        invalidateSection(section);
+        fields.added(fieldBean);
+        if (!loading) listeners.forEach(listener -> listener.fieldAdded(fieldBean));
+        return fieldBean;
+    }
+
+    /**
+     * Remove a field from the document
+     *
+     * @param fieldBean the field to remove
+     */
+    public void removeField(NewsFieldBean fieldBean) {
+        String section = fieldBean.sectionProperty().get();
+        int index = fields.indexOf(fieldBean, section);
+        if (fieldSectionMap.get(section).remove(fieldBean)) {
+            invalidateSection(section);
+            fields.removed(index, fieldBean);
+            listeners.forEach(listener -> listener.fieldRemoved(fieldBean));
+        }
+    }
+
+    /**
+     * Move the field up or down on the final HTML file
+     *
+     * @param field the field to move
+     * @param delta the delta (essentially -1 or +1)
+     */
+    public void moveField(NewsFieldBean field, int delta) {
+        String section = field.sectionProperty().get();
+        moveField(field, section, fieldSectionMap.get(section).indexOf(field) + delta);
+    }
+
+    /**
+     * Move a field to a position in a section, after it was dragged for example
+     *
+     * @param field the field to move
+     * @param section the section of the field once moved
+     * @param index the index of the field in the section once moved, cropped to the section
+     */
+    public void moveField(NewsFieldBean field, String section, int index) {
+        if (!section.equals(field.sectionProperty().get())) field.setSection(section); // added at the end of the section
+
+        IndexedTreeList<NewsFieldBean> sectionFields = fieldSectionMap.get(section);
+        int start = sectionFields.indexOf(field);
+        int end = crop(index, sectionFields.size() - 1);
+
+        if (start == end) return;
+
+        int from = fields.indexOf(field, section);
+        sectionFields.move(start, end);
+        invalidateSection(section);
+        fields.moved(from, field);
+        listeners.forEach(listener -> listener.fieldMoved(field, end - start));
+    }
+
+    private int crop(int n, int max) {
+        return n < 0 ? 0 : (Math.min(n, max));
+    }
+
+    /**
+     * Replace a template in every field using it, after its file changed. Only these fields are rendered again.
+     *
+     * @param oldTemplate the template to replace
+     * @param newTemplate the new template
+     */
+    public void replaceTemplate(CompiledTemplate oldTemplate, CompiledTemplate newTemplate) {
+        fieldSectionMap.values().forEach(sectionFields -> sectionFields.forEach(field -> {
+            if (field.getSnapshot().getTemplate() == oldTemplate) field.setTemplate(newTemplate);
+        }));
+    }
+
+    /**
+     * Remove all fields of the document
+     */
+    public void clear() {
+        List<NewsFieldBean> removed = loading ? List.of() : List.copyOf(fields);
+        fieldSectionMap.forEach((section, list) -> list.clear());
+        clearHTMLCache();
+        if (!loading) {
+            fields.replaced(removed);
+            listeners.forEach(Listener::documentReplaced);
+        }
+    }
+
+    /**
+     * Replace the fields of the document with the fields of a .nmkr file
+     *
+     * @param file the .nmkr file
+     * @throws IOException if the file could not be read or is corrupted, the fields read before the error are kept
+     */
+    public void open(Path file) throws IOException {
+        open(file, fieldBean -> {});
+    }
+
+    /**
+     * Replace the fields of the document with the fields of a .nmkr file
+     *
+     * @param file the .nmkr file
+     * @param fieldLoaded called with each field read, in the order of the file
+     * @throws IOException if the file could not be read or is corrupted, the fields read before the error are kept
+     */
+    public void open(Path file, Consumer<NewsFieldBean> fieldLoaded) throws IOException {
+        PipelineMetrics.Sample sample = PipelineMetrics.start(PipelineMetrics.Operation.DOCUMENT_OPEN);
+        List<NewsFieldBean> removed = List.copyOf(fields);
+        boolean read = false;
+        loading = true;
+        try {
+            clear();
+            NmkrFile.read(file, sectionTag -> {
+                NewsFieldBean newsFieldBean = createField(sectionTag);
+                fieldLoaded.accept(newsFieldBean);
+                return newsFieldBean;
+            });
+            read = true;
+        } finally {
+            loading = false;
+            if (read) {
+                markSaved();
+            } else {
+                markUnsaved(); // the fields read before the error are not in any file, closing must ask to save them
+            }
+            fields.replaced(removed);
+            listeners.forEach(Listener::documentReplaced);
+            sample.stop(sizeOf(file)); // must not hide the error of the read
+        }
+    }
+
+    /**
+     * @param file a file
+     * @return the size of the file for the metrics, 0 if it cannot be read
+     */
+    private static long sizeOf(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Add to the document a field of another .nmkr file, at the end of its section
+     *
+     * @param file the .nmkr file
+     * @param index the index of the field in the file, in the order of the file
+     * @return the new field
+     * @throws IOException if the file could not be read or has no such field
+     */
+    public NewsFieldBean importField(Path file, int index) throws IOException {
+        if (NmkrFile.encodingOf(file) == NmkrFile.Encoding.BINARY) {
+            // only the field is decoded, found by the index of the file
+            NmkrBinaryFile binary = NmkrBinaryFile.open(file);
+            if (index < 0 || index >= binary.fieldCount()) throw new IOException("The file " + file.getFileName() + " has no field " + index);
+            NewsFieldBean imported = createField(binary.section(index));
+            binary.readField(index, imported);
+            return imported;
+        }
+
+        NewsFieldBean[] imported = new NewsFieldBean[1];
+        int[] count = new int[1];
+        NmkrFile.read(file, sectionTag -> {
+            if (count[0]++ != index) return null; // the other fields are skipped by the parser
+            imported[0] = createField(sectionTag);
+            return imported[0];
+        });
+        if (imported[0] == null) throw new IOException("The file " + file.getFileName() + " has no field " + index);
+        return imported[0];
+    }
+
+    /**
+     * Save all the fields in a .nmkr file
+     *
+     * @param file the file where to save the fields
+     * @throws IOException if the file could not be written, it is then left unchanged
+     */
+    public void save(Path file) throws IOException {
+        save(file, NmkrFile.Encoding.JSON);
+    }
+
+    /**
+     * Save all the fields in a .nmkr file with a given encoding
+     *
+     * @param file the file where to save the fields
+     * @param encoding the encoding of the file
+     * @throws IOException if the file could not be written, it is then left unchanged
+     */
+    public void save(Path file, NmkrFile.Encoding encoding) throws IOException {
+        PipelineMetrics.Sample sample = PipelineMetrics.start(PipelineMetrics.Operation.DOCUMENT_SAVE);
+        NmkrFile.write(getFieldSectionMap(), formatProperty.get().languages, file, encoding);
+        sample.stop(sizeOf(file));
+        markSaved();
+        listeners.forEach(Listener::documentSaved);
+    }
+
+    /**
+     * Called after each change of the document
+     */
+    private void documentChanged() {
+        revision.set(revision.get() + 1);
+    }
+
+    /**
+     * Drop the rendered HTML of a section after one of its fields changed, or after a field was added, removed or
+     * moved in it
+     *
+     * @param section the section
+     */
+    private void invalidateSection(String section) {
+        sectionRevisions.merge(section, 1L, Long::sum);
+        sectionHTMLCache.remove(section);
+        markedHTMLCache.remove(section);
+        documentChanged();
+    }
+
+    /**
+     * Drop all the rendered HTML
+     */
+    private void clearHTMLCache() {
+        fieldSectionMap.keySet().forEach(section -> sectionRevisions.merge(section, 1L, Long::sum));
+        sectionHTMLCache.clear();
+        markedHTMLCache.clear();
+        documentChanged();
+    }
+
+    /**
+     * Build the HTML for a given section in a given language
+     * @param fields the fields of the section
+     * @param language the language
+     * @param marked true to enclose the HTML of each field in its markers
+     * @return a String containing the HTML of the section
+     */
+    private static String buildSectionHTML(RenderJob.Section section, String language, boolean marked) {
+        PipelineMetrics.Sample sample = PipelineMetrics.start(PipelineMetrics.Operation.SECTION_RENDER);
+
+        StringBuilder stringBuilder = new StringBuilder();
+
+        for (int i = 0; i < section.fields().size(); i++) {
+            NewsFieldBean field = section.fields().get(i);
+            if (marked) stringBuilder.append("<!--nmkr:").append(fieldKey(field, language)).append("-->");
+            field.appendHTML(stringBuilder, section.snapshots().get(i), language);
+            if (marked) stringBuilder.append("<!--/nmkr:").append(fieldKey(field, language)).append("-->");
+        }
+
+        sample.stop(stringBuilder.length());
+        return stringBuilder.toString();
+    }
+
+    /**
+     * Build all the HTML of the file.
+     * Only the sections whose fields changed are built again, the others are taken from the cache.
+     * @return a String containing the HTML of the file
+     */
+    public String buildHTML() {
+        if (cachedHTML != null && cachedHTMLRevision == revision.get()) return cachedHTML;
+
+        String html = createRenderJob().render();
+        rendered(revision.get(), html);
+        return html;
+    }
+
+    /**
+     * Keep the HTML of a finished render job, so it can be reused while the document does not change
+     *
+     * @param renderRevision the revision of the rendered document
+     * @param html the HTML of the document
+     */
+    public void rendered(long renderRevision, String html) {
+        lastHTMLLength = html.length();
+        if (renderRevision == revision.get()) {
+            cachedHTML = html;
+            cachedHTMLRevision = renderRevision;
+        }
+    }
+
+    /**
+     * Capture what is needed to render the current document. Must be called on the thread editing the document, the
+     * returned job can then be rendered on any thread.
+     *
+     * @return the render job
+     */
+    public RenderJob createRenderJob() {
+        return createRenderJob(null, formatProperty.get().getCompiledBase(), lastHTMLLength, false);
+    }
+
+    /**
+     * Capture a render of the current document for a preview updated field by field. The HTML of each field is
+     * enclosed in the comments <code>&lt;!--nmkr:KEY--&gt;</code> and <code>&lt;!--/nmkr:KEY--&gt;</code>, KEY being
+     * given by <code>fieldKey</code>, so it can be found and replaced in the page when only the field changed.
+     * The HTML is not kept by <code>rendered</code>, it is not the exported one.
+     *
+     * @return the render job
+     */
+    public RenderJob createPreviewJob() {
+        return createRenderJob(null, formatProperty.get().getCompiledBase(), lastHTMLLength, true);
+    }
+
+    /**
+     * @param field a field
+     * @param language a language of the format
+     * @return the key of the markers of the field in a preview, see <code>createPreviewJob</code>
+     */
+    public static String fieldKey(NewsFieldBean field, String language) {
+        return field.getId() + ":" + language;
+    }
+
+    /**
+     * Capture what is needed to render the edition of a single language of the current document. The placeholders of
+     * the other languages are left empty. Must be called on the thread editing the document, the returned job can then
+     * be rendered on any thread.
+     *
+     * @param language the language of the edition
+     * @return the render job
+     */
+    public RenderJob createRenderJob(String language) {
+        Format format = formatProperty.get();
+        return createRenderJob(language, format.getLanguageBase(language), lastHTMLLength / Math.max(1, format.languages.size()), false);
+    }
+
+    private RenderJob createRenderJob(String language, BaseTemplate base, int expectedLength, boolean marked) {
+        Format format = formatProperty.get();
+
+        // placeholders are written in upper case in the base template
+        Map<String, RenderJob.Section> sections = new HashMap<>();
+        fieldSectionMap.forEach((section, fieldList) -> sections.putIfAbsent(section.toUpperCase(),
+                new RenderJob.Section(section, List.copyOf(fieldList),
+                        fieldList.stream().map(NewsFieldBean::getSnapshot).toList(), sectionRevisions.getOrDefault(section, 0L))));
+        Map<String, String> languages = new HashMap<>();
+        format.languages.forEach(l -> languages.putIfAbsent(l.toUpperCase(), l));
+
+        return new RenderJob(revision.get(), base, sections, languages, language,
+                marked ? markedHTMLCache : sectionHTMLCache, marked, expectedLength);
+    }
+
+    /**
+     * Capture the render of the edition of each language, see <code>createRenderJob(String)</code>. Must be called on
+     * the thread editing the document, the jobs can then be exported on any thread.
+     *
+     * @return the render jobs, by language in the order of the format
+     */
+    public Map<String, RenderJob> createLanguageJobs() {
+        Map<String, RenderJob> jobs = new LinkedHashMap<>();
+        for (String language : formatProperty.get().languages) jobs.put(language, createRenderJob(language));
+        return jobs;
+    }
+
+    /**
+     * Render each language on its own thread and write each edition in its own file, see
+     * <code>exportLanguages(Map, Path)</code>
+     *
+     * @param file the name of the files
+     * @return the written files, in the order of the languages
+     * @throws IOException if a file could not be written, the other files are written anyway
+     */
+    public List<Path> exportLanguages(Path file) throws IOException {
+        return exportLanguages(createLanguageJobs(), file);
+    }
+
+    /**
+     * Render each language on its own thread and write each edition in its own file. The files are named after
+     * <code>file</code> with the language before the extension: newsletter.html gives newsletter_english.html, ...
+     *
+     * @param jobs the render jobs by language, from <code>createLanguageJobs</code>
+     * @param file the name of the files
+     * @return the written files, in the order of the languages
+     * @throws IOException if a file could not be written, the other files are written anyway
+     */
+    public static List<Path> exportLanguages(Map<String, RenderJob> jobs, Path file) throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<Future<?>> results = new ArrayList<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Map.Entry<String, RenderJob> entry : jobs.entrySet()) {
+                RenderJob job = entry.getValue();
+                Path target = languageFile(file, entry.getKey());
+                files.add(target);
+                results.add(executor.submit(() -> {
+                    FileManager.saveInFile(job.render(), target.toFile());
+                    return null;
+                }));
+            }
+        }
+
+        IOException failure = null;
+        for (Future<?> result : results) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("export interrupted");
+            }
+        }
+        if (failure != null) throw failure;
+
+        return files;
+    }
+
+    private static Path languageFile(Path file, String language) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String suffix = "_" + language.toLowerCase();
+        return file.resolveSibling(dot > 0 ? name.substring(0, dot) + suffix + name.substring(dot) : name + suffix);
+    }
+
+    /**
+     * The fields of every section following each other. An index is found by adding the sizes of the sections before
+     * the field to its index in its section: O(s + log n) for s sections, which stay few in a format.
+     */
+    private final class FieldsView extends ObservableListBase<NewsFieldBean> {
+
+        @Override
+        public NewsFieldBean get(int index) {
+            if (index >= 0) {
+                for (IndexedTreeList<NewsFieldBean> sectionFields : fieldSectionMap.values()) {
+                    if (index < sectionFields.size()) return sectionFields.get(index);
+                    index -= sectionFields.size();
+                }
+            }
+            throw new IndexOutOfBoundsException("Index: " + index);
+        }
+
+        @Override
+        public int size() {
+            int size = 0;
+            for (IndexedTreeList<NewsFieldBean> sectionFields : fieldSectionMap.values()) size += sectionFields.size();
+            return size;
+        }
+
+        @Override
+        public int indexOf(Object o) {
+            return o instanceof NewsFieldBean field ? indexOf(field, field.sectionProperty().get()) : -1;
+        }
+
+        @Override
+        public int lastIndexOf(Object o) {
+            return indexOf(o);
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return indexOf(o) >= 0;
+        }
+
+        /**
+         * @return the index of a field of a section, or -1 if the field is not in the section
+         */
+        int indexOf(NewsFieldBean field, String section) {
+            int offset = 0;
+            for (Map.Entry<String, IndexedTreeList<NewsFieldBean>> entry : fieldSectionMap.entrySet()) {
+                if (Objects.equals(entry.getKey(), section)) {
+                    int index = entry.getValue().indexOf(field);
+                    return index < 0 ? -1 : offset + index;
+                }
+                offset += entry.getValue().size();
+            }
+            return -1;
+        }
+
+        // while a file is opened, the fields are notified once it is loaded
+
+        void added(NewsFieldBean field) {
+            if (loading) return;
+            int index = indexOf(field);
+            beginChange();
+            nextAdd(index, index + 1);
+            endChange();
+        }
+
+        void removed(int index, NewsFieldBean field) {
+            if (loading) return;
+            beginChange();
+            nextRemove(index, field);
+            endChange();
+        }
+
+        void moved(int from, NewsFieldBean field) {
+            if (loading) return;
+            int to = indexOf(field);
+            if (from == to) return;
+            beginChange();
+            nextRemove(from, field);
+            nextAdd(to, to + 1);
+            endChange();
+        }
+
+        void replaced(List<NewsFieldBean> removed) {
+            beginChange();
+            if (!removed.isEmpty()) nextRemove(0, removed);
+            if (!isEmpty()) nextAdd(0, size());
+            endChange();
+        }
+    }
+
+    /**
+     * A render of the document at a given revision. The HTML of each section is shared with other jobs through a
+     * cache stamped with the revision of the section, so a section is only rendered again after it changed.
+     */
+    public static final class RenderJob {
+
+        /**
+         * A section captured on the FX thread: its fields with their values at that time, so the job never reads the
+         * fields being edited
+         */
+        record Section(String name, List<NewsFieldBean> fields, List<FieldSnapshot> snapshots, long revision) {}
+
+        record SectionHTML(long revision, Map<String, String> byLanguage) {}
+
+        private final long revision;
+        private final BaseTemplate base;
+        private final Map<String, Section> sections;
+        private final Map<String, String> languages;
+        private final String edition; // the only language rendered, or null for all languages
+        private final Map<String, SectionHTML> cache;
+        private final boolean marked; // the HTML of each field is enclosed in markers for the preview
+        private final int expectedLength;
+
+        RenderJob(long revision, BaseTemplate base, Map<String, Section> sections, Map<String, String> languages,
+                  String edition, Map<String, SectionHTML> cache, boolean marked, int expectedLength) {
+            this.revision = revision;
+            this.base = base;
+            this.sections = sections;
+            this.languages = languages;
+            this.edition = edition;
+            this.cache = cache;
+            this.marked = marked;
+            this.expectedLength = expectedLength;
+        }
+
+        /**
+         * @return the revision of the document rendered by this job
+         */
+        public long revision() {
+            return revision;
+        }
+
+        /**
+         * Render the document. Throws a <code>CancellationException</code> if the thread is interrupted.
+         *
+         * @return the HTML of the document
+         */
+        public String render() {
+            PipelineMetrics.Sample sample = PipelineMetrics.start(PipelineMetrics.Operation.DOCUMENT_RENDER);
+            StringBuilder document = new StringBuilder(base.getSource().length() + expectedLength);
+
+            base.render(document, (sectionName, languageName) -> {
+                Section section = sections.get(sectionName);
+                String language = languages.get(languageName);
+                if (section == null || language == null) return null;
+                if (edition != null && !edition.equals(language)) return "";
+                if (Thread.currentThread().isInterrupted()) throw new CancellationException();
+                return sectionHTML(section, language);
+            }, SECTION_INDENT);
+
+            sample.stop(document.length());
+            return document.toString();
+        }
+
+        private String sectionHTML(Section section, String language) {
+            SectionHTML cached = cache.compute(section.name(), (name, c) ->
+                    c != null && c.revision() >= section.revision() ? c : new SectionHTML(section.revision(), new ConcurrentHashMap<>()));
+
+            if (cached.revision() != section.revision()) return buildSectionHTML(section, language, marked); // this job is stale
+            return cached.byLanguage().computeIfAbsent(language, l -> buildSectionHTML(section, l, marked));
+        }
+    }
+}
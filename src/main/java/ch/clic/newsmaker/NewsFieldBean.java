@@ -1,42 +1,97 @@
 package ch.clic.newsmaker;
 
 import javafx.beans.property.ObjectProperty;
+import javafx.beans.property.ReadOnlyLongProperty;
+import javafx.beans.property.ReadOnlyLongWrapper;
 import javafx.beans.property.SimpleObjectProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
 
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class NewsFieldBean {
 
+    private static final AtomicInteger NEXT_ID = new AtomicInteger();
+
+    private final int id = NEXT_ID.incrementAndGet(); // identifies the HTML of the field in the preview
+
     private final StringProperty section = new SimpleStringProperty(); //the section where the field is
 
-    private final Map<String, Map<Format.Tag, StringProperty>> languageVariantPropertiesMap; // all language dependant properties (like description or title) are sorted by language here
+    private volatile FieldSnapshot snapshot; // the section, template and values of the field, replaced on every change
 
-    private final Map<Format.Tag, StringProperty> languageInvariantPropertiesMap; // the others properties are stored here
+    private record View(Format.Tag tag, String language) {}
 
-    private String template = "";
+    private final Map<View, StringProperty> views = new HashMap<>(); // the properties shown in the editor, created on demand
 
     public final ObjectProperty<Format> formatProperty = new SimpleObjectProperty<>();
 
+    private record RenderedHTML(FieldSnapshot snapshot, String html) {}
+
+    private final Map<String, RenderedHTML> htmlCache = new ConcurrentHashMap<>(); // rendered HTML by language
+
+    private final ReadOnlyLongWrapper revision = new ReadOnlyLongWrapper(); // incremented on every change of the field
+
     public NewsFieldBean(Format.Preset preset, Format format) {
 
         formatProperty.setValue(format);
+        snapshot = FieldSnapshot.empty(format.getTags());
+
+        section.addListener((o, oldValue, newValue) -> update(snapshot.withSection(newValue)));
+        formatProperty.addListener((o, oldFormat, newFormat) -> {
+            TemplateRegistry templates = newFormat.getTemplates();
+            if (oldFormat != null && oldFormat.getTemplates() == templates) return; // the same format reloaded, the field did not change
 
-        languageVariantPropertiesMap = new HashMap<>();
-        languageInvariantPropertiesMap = new LinkedHashMap<>();
+            update(snapshot.migrate(templates.getTags(), templates.intern(snapshot.getTemplate().getSource())));
+            htmlCache.clear();
+            invalidate(); // the HTML depends on the format even if the values did not change
+        });
 
         updateWithPreset(preset);
     }
 
-    public Map<Format.Tag, StringProperty> getLanguageConstantPropertiesMap() {
-        return languageInvariantPropertiesMap;
+    /**
+     * @return an id unique in the application, which never changes
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * @return the content of the field at this time, it can be rendered or saved on any thread
+     */
+    public FieldSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Return the tags with a value in a language
+     *
+     * @param language the language, or <code>null</code> for the language-constant tags
+     * @return the tags, in the order of their id in the format
+     */
+    public List<Format.Tag> getTags(String language) {
+        FieldSnapshot current = snapshot;
+        return current.tagsWithValue(current.row(language));
     }
-    public Map<String, Map<Format.Tag, StringProperty>> getLanguageVariablePropertiesMap() {
-        return languageVariantPropertiesMap;
+
+    /**
+     * Return a property bound to the value of a tag, for the editor. The property is created the first time it is
+     * asked for, the values of the field are not stored in properties.
+     *
+     * @param tag the tag
+     * @param language the language, or <code>null</code> for a language-constant tag
+     * @return the property
+     */
+    public StringProperty propertyOf(Format.Tag tag, String language) {
+        return views.computeIfAbsent(new View(tag, language), view -> {
+            StringProperty property = new SimpleStringProperty(snapshot.value(tag, language));
+            property.addListener((o, oldValue, newValue) -> update(snapshot.withValue(tag, language, newValue)));
+            return property;
+        });
     }
 
     /**
@@ -62,11 +117,52 @@ public class NewsFieldBean {
     }
 
     public String getTemplate() {
-        return template;
+        return snapshot.getTemplate().getSource();
     }
 
     public void setTemplate(String value) {
-        this.template = value;
+        setTemplate(formatProperty.get().getTemplates().intern(value));
+    }
+
+    public void setTemplate(CompiledTemplate compiled) {
+        update(snapshot.withTemplate(compiled));
+    }
+
+    /**
+     * The revision is incremented each time a property, the template or the section of the field changes
+     *
+     * @return the revision of the field
+     */
+    public ReadOnlyLongProperty revisionProperty() {
+        return revision.getReadOnlyProperty();
+    }
+
+    /**
+     * Replace the snapshot of the field, notifying revision listeners if it changed
+     */
+    private void update(FieldSnapshot newSnapshot) {
+        if (newSnapshot == snapshot) return;
+        snapshot = newSnapshot;
+        invalidate();
+    }
+
+    /**
+     * Notify revision listeners that the field changed
+     */
+    private void invalidate() {
+        revision.set(revision.get() + 1);
+    }
+
+    /**
+     * Set the value of a tag, through its property if it is shown in the editor
+     */
+    private void setValue(Format.Tag tag, String language, String value) {
+        StringProperty view = views.get(new View(tag, language));
+        if (view != null) {
+            view.set(value);
+        } else {
+            update(snapshot.withValue(tag, language, value));
+        }
     }
 
     /**
@@ -78,8 +174,7 @@ public class NewsFieldBean {
         if (tag.isLanguageVariant())
             throw new IllegalArgumentException("the tagged property needs values for each language");
 
-        languageInvariantPropertiesMap.putIfAbsent(tag, new SimpleStringProperty());
-        languageInvariantPropertiesMap.get(tag).set(value);
+        setValue(tag, null, value);
     }
 
     /**
@@ -92,10 +187,7 @@ public class NewsFieldBean {
         if (!tag.isLanguageVariant())
             throw new IllegalArgumentException("the tagged property change value with language");
 
-        languageVariantPropertiesMap.putIfAbsent(language, new LinkedHashMap<>());
-        languageVariantPropertiesMap.get(language).putIfAbsent(tag, new SimpleStringProperty());
-        languageVariantPropertiesMap.get(language).get(tag).set(value);
-
+        setValue(tag, language, value);
     }
 
     /**
@@ -129,18 +221,48 @@ public class NewsFieldBean {
      * @return a String containing the HTML
      */
     public String getHTML(String language) {
+        FieldSnapshot current = snapshot;
+        RenderedHTML rendered = htmlCache.get(language);
+        if (rendered != null && rendered.snapshot() == current) return rendered.html();
 
-        String formatted = template;
-
-        // replace all tags in the base template with corresponding value
-        for (Map.Entry<Format.Tag, StringProperty> entry : languageInvariantPropertiesMap.entrySet()) {
-            formatted = formatted.replace(entry.getKey().toString(), entry.getValue().get());
-        }
+        return render(new StringBuilder(current.getTemplate().getSource().length() * 2), current, language);
+    }
 
-        for (Map.Entry<Format.Tag, StringProperty> entry : languageVariantPropertiesMap.get(language).entrySet()) {
-            formatted = formatted.replace(entry.getKey().toString(), entry.getValue().get());
+    /**
+     * Append the HTML of a snapshot of the field to <code>out</code>. The HTML is rendered only if it is not the
+     * snapshot rendered last for this language, and then directly in <code>out</code>: the only copy is the one kept
+     * in the cache.
+     * <p>
+     * Can be called from a render thread while the field is edited on the FX thread, with a snapshot taken on the FX
+     * thread when the render was prepared.
+     *
+     * @param out where to write the HTML
+     * @param current the snapshot of the field to render, from <code>getSnapshot</code>
+     * @param language the HTML can be build in any available language
+     */
+    public void appendHTML(StringBuilder out, FieldSnapshot current, String language) {
+        RenderedHTML rendered = htmlCache.get(language);
+        if (rendered != null && rendered.snapshot() == current) {
+            out.append(rendered.html());
+        } else {
+            render(out, current, language);
         }
+    }
 
-        return formatted;
+    /**
+     * Render a snapshot of the field at the end of <code>out</code> and cache the HTML
+     *
+     * @return the HTML appended
+     */
+    private String render(StringBuilder out, FieldSnapshot current, String language) {
+        PipelineMetrics.Sample sample = PipelineMetrics.start(PipelineMetrics.Operation.FIELD_RENDER);
+        int start = out.length();
+        current.getTemplate().render(out, current, current.row(language));
+        String html = out.substring(start);
+        sample.stop(html.length());
+
+        // a render racing with an edit is stored with its old snapshot, so it is never served
+        htmlCache.put(language, new RenderedHTML(current, html));
+        return html;
     }
 }
@@ -28,22 +28,45 @@ public class NewsMaker extends Application {
         stage.setTitle("NewsMaker");
         stage.setScene(scene);
         stage.show();
+        StartupMetrics.mark(StartupMetrics.WINDOW_SHOWN);
     }
 
     @Override
     public void stop() throws IOException {
+        boolean discardAutosave = false; // only once the work is saved or the user chose to drop it
+        try {
+            if (controller.hasNotChanged()) {
+                discardAutosave = true;
+                return;
+            }
 
-        if (controller.hasNotChanged()) return;
+            Alert alert = new Alert(Alert.AlertType.CONFIRMATION,
+                    "You file is not saved. Do you want to save it?",
+                    ButtonType.YES, ButtonType.NO);
 
-        Alert alert = new Alert(Alert.AlertType.CONFIRMATION,
-                "You file is not saved. Do you want to save it?",
-                ButtonType.YES, ButtonType.NO);
+            alert.setTitle("File not saved");
+            alert.showAndWait();
 
-        alert.setTitle("File not saved");
-        alert.showAndWait();
+            if (alert.getResult() == ButtonType.YES) {
+                discardAutosave = controller.save();
+            } else {
+                discardAutosave = alert.getResult() == ButtonType.NO;
+            }
 
-        if (alert.getResult() != ButtonType.YES) return;
-        controller.save();
+            if (!discardAutosave) {
+                Alert kept = new Alert(Alert.AlertType.INFORMATION,
+                        "The unsaved work is kept and will be offered for recovery at the next start.", ButtonType.OK);
+                kept.setTitle("File not saved");
+                kept.showAndWait();
+            }
+        } finally {
+            if (discardAutosave) {
+                controller.discardAutosave(); // nothing to recover
+            } else {
+                controller.closeAutosave();
+            }
+            controller.stopPreviewServer();
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,147 @@
+package ch.clic.newsmaker;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Render .nmkr files to HTML without starting the JavaFX toolkit, for servers without display.
+ * <p>
+ * The render path (<code>Format</code>, <code>NewsDocument</code>, <code>NewsFieldBean</code> and the templates) is in
+ * the same package as the interface. It uses the properties and collections of <code>javafx.base</code>, which need
+ * neither a display nor the toolkit, so the JavaFX jars must still be on the module path.
+ * <p>
+ * Usage: <code>render [--format FOLDER] [--output FOLDER] [--languages] FILE.nmkr...</code>
+ * <ul>
+ *     <li><code>--format</code>: a folder with a config.json, the base and the template files. The last used format
+ *     is used by default.</li>
+ *     <li><code>--output</code>: the folder where the HTML files are written. Each HTML file is written next to its
+ *     .nmkr file by default.</li>
+ *     <li><code>--languages</code>: write one HTML file for each language instead of a single file, the languages
+ *     are rendered in parallel too.</li>
+ * </ul>
+ * The files are rendered in parallel. The exit status is 0 if all files were rendered, 1 if some failed and 2 if the
+ * arguments are invalid.
+ */
+public class NewsMakerCLI {
+
+    public static final String COMMAND = "render";
+    private static final String FORMAT_OPTION = "--format";
+    private static final String OUTPUT_OPTION = "--output";
+    private static final String LANGUAGES_OPTION = "--languages";
+    private static final String NMKR_EXTENSION = ".nmkr";
+    private static final String HTML_EXTENSION = ".html";
+
+    private NewsMakerCLI() {}
+
+    public static void main(String[] args) {
+        System.exit(run(args));
+    }
+
+    /**
+     * Render the files given as arguments
+     *
+     * @param args the arguments, without the command name
+     * @return the exit status
+     */
+    public static int run(String[] args) {
+        Path formatFolder = null;
+        Path outputFolder = null;
+        boolean splitLanguages = false;
+        List<Path> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case FORMAT_OPTION, OUTPUT_OPTION -> {
+                    if (i + 1 == args.length) return usage("missing value for " + args[i]);
+                    Path folder = Paths.get(args[++i]);
+                    if (args[i - 1].equals(FORMAT_OPTION)) formatFolder = folder; else outputFolder = folder;
+                }
+                case LANGUAGES_OPTION -> splitLanguages = true;
+                default -> {
+                    if (args[i].startsWith("--")) return usage("unknown option " + args[i]);
+                    files.add(Paths.get(args[i]));
+                }
+            }
+        }
+        if (files.isEmpty()) return usage("no file to render");
+
+        Format format;
+        try {
+            format = formatFolder == null ? Format.recentFormat() : Format.fromFolder(formatFolder);
+        } catch (IOException e) {
+            System.err.println("The format could not be loaded: " + e.getMessage());
+            return 1;
+        }
+
+        return render(format, files, outputFolder, splitLanguages) ? 0 : 1;
+    }
+
+    /**
+     * Render each file on its own thread and write its HTML file
+     *
+     * @param format the format of the documents
+     * @param files the .nmkr files
+     * @param outputFolder the folder of the HTML files, or <code>null</code> to write them next to the .nmkr files
+     * @param splitLanguages true to write one HTML file for each language
+     * @return true if all files were rendered, else false
+     */
+    public static boolean render(Format format, List<Path> files, Path outputFolder, boolean splitLanguages) {
+        Map<Path, Future<List<Path>>> results = new LinkedHashMap<>();
+
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (Path file : files) {
+                // the documents are created here since they register on the shared format, the rest is done in parallel
+                NewsDocument document = new NewsDocument(format);
+                Path target = outputFile(file, outputFolder);
+                results.put(file, executor.submit(() -> {
+                    document.open(file);
+                    Files.createDirectories(target.toAbsolutePath().getParent());
+                    if (splitLanguages) return document.exportLanguages(target);
+
+                    FileManager.saveInFile(document.buildHTML(), target.toFile());
+                    return List.of(target);
+                }));
+            }
+        }
+
+        boolean success = true;
+        for (Map.Entry<Path, Future<List<Path>>> result : results.entrySet()) {
+            try {
+                for (Path target : result.getValue().get()) {
+                    System.out.println(result.getKey() + " -> " + target);
+                }
+            } catch (ExecutionException e) {
+                System.err.println(result.getKey() + ": " + e.getCause().getMessage());
+                success = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return success;
+    }
+
+    private static Path outputFile(Path file, Path outputFolder) {
+        String name = file.getFileName().toString();
+        if (name.endsWith(NMKR_EXTENSION)) name = name.substring(0, name.length() - NMKR_EXTENSION.length());
+        name += HTML_EXTENSION;
+
+        return outputFolder == null ? file.resolveSibling(name) : outputFolder.resolve(name);
+    }
+
+    private static int usage(String error) {
+        System.err.println(error);
+        System.err.println("usage: " + COMMAND + " [" + FORMAT_OPTION + " FOLDER] [" + OUTPUT_OPTION + " FOLDER] [" + LANGUAGES_OPTION + "] FILE.nmkr...");
+        return 2;
+    }
+}
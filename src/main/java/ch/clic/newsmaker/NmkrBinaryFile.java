@@ -0,0 +1,400 @@
+package ch.clic.newsmaker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A NewsMaker document in the compact binary encoding of .nmkr files.
+ * <p>
+ * A json .nmkr file repeats the name of every tag and the whole template in each field. The binary encoding stores
+ * each tag name, language, section and template once in a string table, and the fields refer to them by index. An
+ * index gives the position of each field, so a single field can be decoded without reading the others: opening a file
+ * only reads its index, the fields are decoded when they are asked for.
+ * <p>
+ * Layout, all integers but the magic number being unsigned LEB128 varints:
+ * <pre>
+ * magic "NMKB" (4 bytes), version (1 byte)
+ * string table: count, then each string
+ * languages: count, then the index of each language in the string table
+ * field index: count, then for each field its section in the document (string index), its offset and its length
+ * field data: for each field its section, its template, then the count and the (row, tag name, value) of its values
+ * </pre>
+ * A string is its length in bytes followed by its UTF-8 bytes. Row 0 holds the language-constant values and row
+ * <code>l + 1</code> the values in the language <code>l</code> of the file, as in <code>FieldSnapshot</code>.
+ */
+public final class NmkrBinaryFile {
+
+    static final int MAGIC = 0x4E4D4B42; // "NMKB"
+    private static final int VERSION = 1;
+
+    private final ByteBuffer buffer; // the whole file, only read with absolute positions
+    private final int[] stringOffsets; // the position of each string of the table
+    private final String[] strings; // the strings already decoded
+    private final String[] languages;
+    private final int[] fieldSections; // the string index of the section of each field
+    private final int[] fieldOffsets; // the position of each field
+    private final int[] fieldLengths;
+
+    private NmkrBinaryFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        try {
+            Decoder in = new Decoder(buffer, 0);
+            if (in.readInt() != MAGIC) throw new IOException("not a binary .nmkr file");
+            int version = in.readByte();
+            if (version != VERSION) throw new IOException("unsupported binary .nmkr version " + version);
+
+            stringOffsets = new int[in.readCount()];
+            strings = new String[stringOffsets.length];
+            for (int i = 0; i < stringOffsets.length; i++) {
+                stringOffsets[i] = in.position;
+                in.skipString();
+            }
+
+            languages = new String[in.readCount()];
+            for (int l = 0; l < languages.length; l++) languages[l] = string(in.readVarInt());
+
+            int fieldCount = in.readCount();
+            fieldSections = new int[fieldCount];
+            fieldOffsets = new int[fieldCount];
+            fieldLengths = new int[fieldCount];
+            for (int f = 0; f < fieldCount; f++) {
+                fieldSections[f] = in.readVarInt();
+                fieldOffsets[f] = in.readVarInt();
+                fieldLengths[f] = in.readVarInt();
+                if (fieldSections[f] < 0 || fieldSections[f] >= strings.length) throw new IOException("corrupted field index");
+            }
+
+            // the offsets are relative to the field data, which follows the index
+            for (int f = 0; f < fieldCount; f++) {
+                if (fieldOffsets[f] < 0 || fieldLengths[f] < 0) throw new IOException("corrupted field index");
+                fieldOffsets[f] += in.position;
+                if ((long) fieldOffsets[f] + fieldLengths[f] > buffer.limit()) throw new IOException("truncated binary .nmkr file");
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("corrupted binary .nmkr file", e);
+        }
+    }
+
+    /**
+     * Open a binary .nmkr file. The file is read in a single pass but only its index is decoded.
+     * <p>
+     * The file is not mapped in memory, so it can be replaced while the document is open.
+     *
+     * @param file the file
+     * @return the opened file
+     * @throws IOException if the file could not be read or is not a binary .nmkr file
+     */
+    public static NmkrBinaryFile open(Path file) throws IOException {
+        return open(Files.readAllBytes(file));
+    }
+
+    /**
+     * Open a document in the binary encoding held in memory
+     *
+     * @param bytes the encoded document
+     * @return the opened document
+     * @throws IOException if the bytes are not a binary .nmkr document
+     */
+    public static NmkrBinaryFile open(byte[] bytes) throws IOException {
+        return new NmkrBinaryFile(ByteBuffer.wrap(bytes));
+    }
+
+    /**
+     * Return true if a file starts with the magic number of the binary encoding
+     *
+     * @param file the file
+     * @return true if the file is a binary .nmkr file, else false
+     * @throws IOException if the file could not be read
+     */
+    public static boolean isBinary(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+            while (magic.hasRemaining() && channel.read(magic) >= 0) ;
+            return !magic.hasRemaining() && magic.flip().getInt() == MAGIC;
+        }
+    }
+
+    public int fieldCount() {
+        return fieldOffsets.length;
+    }
+
+    /**
+     * @param field the index of the field in the file
+     * @return the section of the document in which the field is stored
+     */
+    public String section(int field) {
+        return string(fieldSections[field]);
+    }
+
+    /**
+     * Decode a single field
+     *
+     * @param field the index of the field in the file
+     * @param newsFieldBean the field filled with the values read in the file
+     * @throws IOException if the field is corrupted
+     */
+    public void readField(int field, NewsFieldBean newsFieldBean) throws IOException {
+        readField(field, NmkrFile.FieldContent.of(newsFieldBean));
+    }
+
+    void readField(int field, NmkrFile.FieldContent content) throws IOException {
+        TagTable tags = content.tags();
+        try {
+            Decoder in = new Decoder(buffer, fieldOffsets[field]);
+            content.setSection(string(in.readVarInt()));
+            content.setTemplate(string(in.readVarInt()));
+
+            for (int count = in.readVarInt(); count > 0; count--) {
+                int row = in.readVarInt();
+                String name = string(in.readVarInt());
+                String value = in.readString();
+                if (row == FieldSnapshot.CONSTANT_ROW) {
+                    content.setValue(tags.intern(name, false), null, value);
+                } else {
+                    content.setValue(tags.intern(name, true), languages[row - 1], value);
+                }
+            }
+
+            if (in.position != fieldOffsets[field] + fieldLengths[field]) throw new IOException("corrupted field " + field);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("corrupted field " + field, e);
+        }
+    }
+
+    /**
+     * Decode all the fields, in the order of the file
+     *
+     * @param fieldFactory creates an empty field in the section given as argument, the field is then filled with the
+     *                     values read in the file. It returns null to skip a field, which is then not decoded.
+     * @throws IOException if a field is corrupted, the fields read before are kept
+     */
+    public void readAll(Function<String, NewsFieldBean> fieldFactory) throws IOException {
+        readContent(section -> {
+            NewsFieldBean field = fieldFactory.apply(section);
+            return field == null ? null : NmkrFile.FieldContent.of(field);
+        });
+    }
+
+    void readContent(Function<String, NmkrFile.FieldContent> fieldFactory) throws IOException {
+        for (int field = 0; field < fieldCount(); field++) {
+            NmkrFile.FieldContent content = fieldFactory.apply(section(field));
+            if (content != null) readField(field, content);
+        }
+    }
+
+    private String string(int index) {
+        String value = strings[index];
+        if (value == null) {
+            // a race decodes the same string twice, which is harmless
+            value = new Decoder(buffer, stringOffsets[index]).readString();
+            strings[index] = value;
+        }
+        return value;
+    }
+
+    /**
+     * Write snapshots of the fields of a document in a binary .nmkr file. The file is replaced atomically.
+     *
+     * @param snapshots the snapshots of the fields sorted by sections
+     * @param languages all languages of the document
+     * @param file the file where to write
+     * @throws IOException if an I/O error occurs, the file is then left unchanged
+     */
+    public static void write(Map<String, List<FieldSnapshot>> snapshots, List<String> languages, Path file) throws IOException {
+        ByteBuffer encoded = ByteBuffer.wrap(encode(snapshots, languages));
+        FileManager.writeAtomically(file, channel -> {
+            while (encoded.hasRemaining()) channel.write(encoded);
+        });
+    }
+
+    /**
+     * Write snapshots of the fields of a document in the binary encoding in a stream
+     *
+     * @param snapshots the snapshots of the fields sorted by sections
+     * @param languages all languages of the document
+     * @param out the stream where to write, it is not closed
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(Map<String, List<FieldSnapshot>> snapshots, List<String> languages, OutputStream out) throws IOException {
+        out.write(encode(snapshots, languages));
+    }
+
+    private static byte[] encode(Map<String, List<FieldSnapshot>> snapshots, List<String> languages) {
+        Map<String, Integer> strings = new HashMap<>(); // the index of each string in the table
+        Encoder table = new Encoder();
+        Function<String, Integer> stringIndex = value -> strings.computeIfAbsent(value, s -> {
+            table.writeString(s);
+            return strings.size();
+        });
+
+        Encoder languageIndex = new Encoder();
+        languageIndex.writeVarInt(languages.size());
+        languages.forEach(language -> languageIndex.writeVarInt(stringIndex.apply(language)));
+
+        Encoder fieldIndex = new Encoder();
+        Encoder data = new Encoder();
+        fieldIndex.writeVarInt(snapshots.values().stream().mapToInt(List::size).sum());
+        for (Map.Entry<String, List<FieldSnapshot>> section : snapshots.entrySet()) {
+            for (FieldSnapshot snapshot : section.getValue()) {
+                int offset = data.size;
+                writeField(data, stringIndex, snapshot, languages);
+
+                fieldIndex.writeVarInt(stringIndex.apply(section.getKey()));
+                fieldIndex.writeVarInt(offset);
+                fieldIndex.writeVarInt(data.size - offset);
+            }
+        }
+
+        Encoder file = new Encoder();
+        file.writeInt(MAGIC);
+        file.writeByte(VERSION);
+        file.writeVarInt(strings.size());
+        file.write(table);
+        file.write(languageIndex);
+        file.write(fieldIndex);
+        file.write(data);
+        return Arrays.copyOf(file.bytes, file.size);
+    }
+
+    private static void writeField(Encoder out, Function<String, Integer> stringIndex, FieldSnapshot snapshot, List<String> languages) {
+        out.writeVarInt(stringIndex.apply(snapshot.getSection().toUpperCase()));
+        out.writeVarInt(stringIndex.apply(snapshot.getTemplate().getSource()));
+
+        // the rows of the snapshot in the order of the languages of the file
+        int[] rows = new int[languages.size() + 1];
+        rows[0] = FieldSnapshot.CONSTANT_ROW;
+        for (int l = 0; l < languages.size(); l++) rows[l + 1] = snapshot.row(languages.get(l));
+
+        TagTable tags = snapshot.getTags();
+        List<List<Format.Tag>> rowTags = new ArrayList<>(rows.length); // in the order they got their value
+        int count = 0;
+        for (int row : rows) {
+            List<Format.Tag> withValue = snapshot.tagsWithValue(row);
+            rowTags.add(withValue);
+            count += withValue.size();
+        }
+        out.writeVarInt(count);
+
+        for (int fileRow = 0; fileRow < rows.length; fileRow++) {
+            for (Format.Tag tag : rowTags.get(fileRow)) {
+                out.writeVarInt(fileRow);
+                out.writeVarInt(stringIndex.apply(tag.name()));
+                out.writeString(snapshot.value(rows[fileRow], tags.findTagId(tag)));
+            }
+        }
+    }
+
+    /**
+     * A growable byte array with the encodings of the file
+     */
+    private static final class Encoder {
+        byte[] bytes = new byte[256];
+        int size;
+
+        void writeByte(int value) {
+            if (size == bytes.length) bytes = Arrays.copyOf(bytes, size * 2);
+            bytes[size++] = (byte) value;
+        }
+
+        void writeInt(int value) {
+            writeByte(value >>> 24);
+            writeByte(value >>> 16);
+            writeByte(value >>> 8);
+            writeByte(value);
+        }
+
+        void writeVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                writeByte((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            writeByte(value);
+        }
+
+        void writeString(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(utf8.length);
+            write(utf8, utf8.length);
+        }
+
+        void write(Encoder other) {
+            write(other.bytes, other.size);
+        }
+
+        private void write(byte[] source, int length) {
+            if (size + length > bytes.length) bytes = Arrays.copyOf(bytes, Math.max(size + length, bytes.length * 2));
+            System.arraycopy(source, 0, bytes, size, length);
+            size += length;
+        }
+    }
+
+    /**
+     * Read the encodings of the file from a position, without changing the position of the shared buffer
+     */
+    private static final class Decoder {
+        final ByteBuffer buffer;
+        int position;
+
+        Decoder(ByteBuffer buffer, int position) {
+            this.buffer = buffer;
+            this.position = position;
+        }
+
+        int readByte() {
+            if (position >= buffer.limit()) throw new BufferUnderflowException();
+            return buffer.get(position++) & 0xFF;
+        }
+
+        int readInt() {
+            return readByte() << 24 | readByte() << 16 | readByte() << 8 | readByte();
+        }
+
+        int readVarInt() {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return value;
+            }
+            throw new BufferUnderflowException(); // more than 5 bytes, the file is corrupted
+        }
+
+        /**
+         * Read the count of a table, each entry of which takes at least a byte
+         */
+        int readCount() {
+            int count = readVarInt();
+            if (count < 0 || count > buffer.limit() - position) throw new BufferUnderflowException();
+            return count;
+        }
+
+        String readString() {
+            int length = readVarInt();
+            if (length < 0 || position + length > buffer.limit()) throw new BufferUnderflowException();
+
+            byte[] utf8 = new byte[length];
+            buffer.get(position, utf8);
+            position += length;
+            return new String(utf8, StandardCharsets.UTF_8);
+        }
+
+        void skipString() {
+            int length = readVarInt();
+            if (length < 0 || position + length > buffer.limit()) throw new BufferUnderflowException();
+            position += length;
+        }
+    }
+}
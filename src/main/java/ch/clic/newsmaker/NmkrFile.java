@@ -0,0 +1,420 @@
+package ch.clic.newsmaker;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Read and write NewsMaker documents (.nmkr files).
+ * <p>
+ * A .nmkr file is a json object with an array of fields for each section. The documents are streamed field by field,
+ * so the memory used does not depend on the size of the document.
+ * <p>
+ * A .nmkr file can also use the compact binary encoding of <code>NmkrBinaryFile</code>. Both encodings are read the
+ * same way, json stays the default for interchange.
+ */
+public final class NmkrFile {
+
+    static final String SECTION_TAG = "section";
+    static final String TEMPLATE_TAG = "template";
+    static final String LANGUAGE_CONSTANT_PROPERTIES_TAG = "language-constant-properties";
+    static final String LANGUAGE_VARIABLE_PROPERTIES_TAG = "language-variable-properties";
+
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * The encodings of a .nmkr file
+     */
+    public enum Encoding {
+        JSON, BINARY
+    }
+
+    private NmkrFile() {}
+
+    /**
+     * @param file a .nmkr file
+     * @return the encoding of the file
+     * @throws IOException if the file could not be read
+     */
+    public static Encoding encodingOf(Path file) throws IOException {
+        return NmkrBinaryFile.isBinary(file) ? Encoding.BINARY : Encoding.JSON;
+    }
+
+    /**
+     * The content of a field while it is read: a field of the document, or only its snapshot for a file which is not
+     * opened in the editor
+     */
+    interface FieldContent {
+
+        TagTable tags();
+
+        void setSection(String section);
+
+        void setTemplate(String source);
+
+        /**
+         * @param language the language, or <code>null</code> for a language-constant tag
+         */
+        void setValue(Format.Tag tag, String language, String value);
+
+        static FieldContent of(NewsFieldBean field) {
+            return new FieldContent() {
+                @Override
+                public TagTable tags() {
+                    return field.getSnapshot().getTags();
+                }
+
+                @Override
+                public void setSection(String section) {
+                    field.setSection(section);
+                }
+
+                @Override
+                public void setTemplate(String source) {
+                    field.setTemplate(source);
+                }
+
+                @Override
+                public void setValue(Format.Tag tag, String language, String value) {
+                    if (language == null) {
+                        field.setPropertyValue(tag, value);
+                    } else {
+                        field.setPropertyValue(tag, language, value);
+                    }
+                }
+            };
+        }
+    }
+
+    /**
+     * Builds the snapshot of a field without creating the field and its properties
+     */
+    private static final class SnapshotContent implements FieldContent {
+        private final TemplateRegistry templates;
+        private FieldSnapshot snapshot;
+
+        private SnapshotContent(TemplateRegistry templates, String section) {
+            this.templates = templates;
+            this.snapshot = FieldSnapshot.empty(templates.getTags()).withSection(section);
+        }
+
+        @Override
+        public TagTable tags() {
+            return snapshot.getTags();
+        }
+
+        @Override
+        public void setSection(String section) {
+            snapshot = snapshot.withSection(section);
+        }
+
+        @Override
+        public void setTemplate(String source) {
+            snapshot = snapshot.withTemplate(templates.intern(source));
+        }
+
+        @Override
+        public void setValue(Format.Tag tag, String language, String value) {
+            snapshot = snapshot.withValue(tag, language, value);
+        }
+    }
+
+    /**
+     * Read all the fields of a .nmkr file, in json or in the binary encoding, without building a tree of the document
+     *
+     * @param file the file to read
+     * @param fieldFactory creates an empty field in the section given as argument, the field is then filled with the
+     *                     values read in the file. It returns null to skip a field, which is then not decoded.
+     * @throws IOException if an I/O error occurs or if the file is corrupted
+     */
+    public static void read(Path file, Function<String, NewsFieldBean> fieldFactory) throws IOException {
+        readContent(file, contentOf(fieldFactory));
+    }
+
+    /**
+     * Read all the fields of a document written as json in a stream
+     *
+     * @param in the stream to read, it is not closed
+     * @param fieldFactory creates an empty field in the section given as argument, the field is then filled with the
+     *                     values read in the stream. It returns null to skip a field, which is then not decoded.
+     * @throws IOException if an I/O error occurs or if the document is corrupted
+     */
+    public static void read(InputStream in, Function<String, NewsFieldBean> fieldFactory) throws IOException {
+        readContent(in, contentOf(fieldFactory));
+    }
+
+    /**
+     * Read the snapshots of all the fields of a .nmkr file without creating the fields, for a file which is only
+     * searched or indexed
+     *
+     * @param file the file to read
+     * @param templates the templates and tags of the format of the snapshots
+     * @return the snapshots in the order of the file
+     * @throws IOException if an I/O error occurs or if the file is corrupted
+     */
+    public static List<FieldSnapshot> readSnapshots(Path file, TemplateRegistry templates) throws IOException {
+        List<SnapshotContent> fields = new ArrayList<>();
+        readContent(file, section -> {
+            SnapshotContent field = new SnapshotContent(templates, section);
+            fields.add(field);
+            return field;
+        });
+        return fields.stream().map(field -> field.snapshot).toList();
+    }
+
+    private static Function<String, FieldContent> contentOf(Function<String, NewsFieldBean> fieldFactory) {
+        return section -> {
+            NewsFieldBean field = fieldFactory.apply(section);
+            return field == null ? null : FieldContent.of(field);
+        };
+    }
+
+    static void readContent(Path file, Function<String, FieldContent> fieldFactory) throws IOException {
+        if (encodingOf(file) == Encoding.BINARY) {
+            NmkrBinaryFile.open(file).readContent(fieldFactory);
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+             InputStream in = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE)) {
+            readContent(in, fieldFactory);
+        }
+    }
+
+    private static void readContent(InputStream in, Function<String, FieldContent> fieldFactory) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(in)) {
+            parser.disable(JsonParser.Feature.AUTO_CLOSE_SOURCE);
+
+            expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+
+            // each section
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String sectionTag = parser.currentName();
+                expect(parser, parser.nextToken(), JsonToken.START_ARRAY);
+
+                // each field of the section
+                while (parser.nextToken() == JsonToken.START_OBJECT) {
+                    FieldContent field = fieldFactory.apply(sectionTag);
+                    if (field == null) {
+                        parser.skipChildren();
+                    } else {
+                        readField(parser, field);
+                    }
+                }
+                expect(parser, parser.currentToken(), JsonToken.END_ARRAY);
+            }
+            expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+        }
+    }
+
+    private static void readField(JsonParser parser, FieldContent field) throws IOException {
+        TagTable tags = field.tags();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.currentName();
+            JsonToken value = parser.nextToken();
+
+            switch (name) {
+                case SECTION_TAG -> field.setSection(parser.getValueAsString());
+                case TEMPLATE_TAG -> field.setTemplate(parser.getValueAsString());
+
+                // language constant properties (like URL, image, ...)
+                case LANGUAGE_CONSTANT_PROPERTIES_TAG -> {
+                    expect(parser, value, JsonToken.START_OBJECT);
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        Format.Tag tag = tags.intern(parser.currentName(), false);
+                        parser.nextToken();
+                        field.setValue(tag, null, parser.getValueAsString());
+                    }
+                }
+
+                // language variable properties (like description, titles, date, ...)
+                case LANGUAGE_VARIABLE_PROPERTIES_TAG -> {
+                    expect(parser, value, JsonToken.START_OBJECT);
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String language = parser.currentName();
+                        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            Format.Tag tag = tags.intern(parser.currentName(), true);
+                            parser.nextToken();
+                            field.setValue(tag, language, parser.getValueAsString());
+                        }
+                    }
+                }
+                default -> parser.skipChildren();
+            }
+        }
+        expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+    }
+
+    private static void expect(JsonParser parser, JsonToken token, JsonToken expected) throws JsonParseException {
+        if (token != expected)
+            throw new JsonParseException(parser, "expected " + expected + " but found " + token);
+    }
+
+    /**
+     * Write all the fields of a document in a .nmkr file. The file is replaced atomically.
+     *
+     * @param fieldSectionMap the fields of the document sorted by sections
+     * @param languages all languages of the document
+     * @param file the file where to write
+     * @throws IOException if an I/O error occurs, the file is then left unchanged
+     */
+    public static void write(Map<String, List<NewsFieldBean>> fieldSectionMap, List<String> languages, Path file) throws IOException {
+        writeSnapshots(snapshots(fieldSectionMap), languages, file);
+    }
+
+    /**
+     * Write all the fields of a document in a .nmkr file with a given encoding. The file is replaced atomically.
+     *
+     * @param fieldSectionMap the fields of the document sorted by sections
+     * @param languages all languages of the document
+     * @param file the file where to write
+     * @param encoding the encoding of the file
+     * @throws IOException if an I/O error occurs, the file is then left unchanged
+     */
+    public static void write(Map<String, List<NewsFieldBean>> fieldSectionMap, List<String> languages, Path file, Encoding encoding) throws IOException {
+        writeSnapshots(snapshots(fieldSectionMap), languages, file, encoding);
+    }
+
+    /**
+     * Write all the fields of a document as json in a stream
+     *
+     * @param fieldSectionMap the fields of the document sorted by sections
+     * @param languages all languages of the document
+     * @param out the stream where to write, it is not closed
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(Map<String, List<NewsFieldBean>> fieldSectionMap, List<String> languages, OutputStream out) throws IOException {
+        writeSnapshots(snapshots(fieldSectionMap), languages, out);
+    }
+
+    /**
+     * Take the snapshot of every field, keeping the order of the sections and of the fields
+     *
+     * @param fieldSectionMap the fields of the document sorted by sections
+     * @return the snapshots of the fields sorted by sections
+     */
+    public static Map<String, List<FieldSnapshot>> snapshots(Map<String, List<NewsFieldBean>> fieldSectionMap) {
+        Map<String, List<FieldSnapshot>> snapshots = new LinkedHashMap<>();
+        fieldSectionMap.forEach((section, fields) -> snapshots.put(section, fields.stream().map(NewsFieldBean::getSnapshot).toList()));
+        return snapshots;
+    }
+
+    /**
+     * Write snapshots of the fields of a document in a .nmkr file. The file is replaced atomically.
+     * The snapshots can be written on any thread while the document is edited.
+     *
+     * @param snapshots the snapshots of the fields sorted by sections
+     * @param languages all languages of the document
+     * @param file the file where to write
+     * @throws IOException if an I/O error occurs, the file is then left unchanged
+     */
+    public static void writeSnapshots(Map<String, List<FieldSnapshot>> snapshots, List<String> languages, Path file) throws IOException {
+        FileManager.writeAtomically(file, channel -> {
+            // the stream is flushed but not closed, the channel is closed by FileManager
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+            writeSnapshots(snapshots, languages, out);
+            out.flush();
+        });
+    }
+
+    /**
+     * Write snapshots of the fields of a document in a .nmkr file with a given encoding. The file is replaced
+     * atomically. The snapshots can be written on any thread while the document is edited.
+     *
+     * @param snapshots the snapshots of the fields sorted by sections
+     * @param languages all languages of the document
+     * @param file the file where to write
+     * @param encoding the encoding of the file
+     * @throws IOException if an I/O error occurs, the file is then left unchanged
+     */
+    public static void writeSnapshots(Map<String, List<FieldSnapshot>> snapshots, List<String> languages, Path file, Encoding encoding) throws IOException {
+        switch (encoding) {
+            case JSON -> writeSnapshots(snapshots, languages, file);
+            case BINARY -> NmkrBinaryFile.write(snapshots, languages, file);
+        }
+    }
+
+    /**
+     * Write snapshots of the fields of a document as json in a stream
+     *
+     * @param snapshots the snapshots of the fields sorted by sections
+     * @param languages all languages of the document
+     * @param out the stream where to write, it is not closed
+     * @throws IOException if an I/O error occurs
+     */
+    public static void writeSnapshots(Map<String, List<FieldSnapshot>> snapshots, List<String> languages, OutputStream out) throws IOException {
+        try (JsonGenerator generator = JSON_FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            generator.useDefaultPrettyPrinter();
+
+            generator.writeStartObject();
+
+            // save each section
+            for (Map.Entry<String, List<FieldSnapshot>> section : snapshots.entrySet()) {
+                generator.writeArrayFieldStart(section.getKey());
+
+                // each field of the section
+                for (FieldSnapshot snapshot : section.getValue()) {
+                    writeField(generator, snapshot, languages);
+                }
+
+                generator.writeEndArray();
+            }
+
+            generator.writeEndObject();
+        }
+    }
+
+    private static void writeField(JsonGenerator generator, FieldSnapshot snapshot, List<String> languages) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField(SECTION_TAG, snapshot.getSection().toUpperCase());
+        generator.writeStringField(TEMPLATE_TAG, snapshot.getTemplate().getSource());
+
+        // save language-constant properties
+        generator.writeObjectFieldStart(LANGUAGE_CONSTANT_PROPERTIES_TAG);
+        writeProperties(generator, snapshot, FieldSnapshot.CONSTANT_ROW);
+        generator.writeEndObject();
+
+        // save language-variable properties
+        generator.writeObjectFieldStart(LANGUAGE_VARIABLE_PROPERTIES_TAG);
+        for (String language : languages) {
+            generator.writeObjectFieldStart(language);
+            writeProperties(generator, snapshot, snapshot.row(language));
+            generator.writeEndObject();
+        }
+        generator.writeEndObject();
+
+        generator.writeEndObject();
+    }
+
+    /**
+     * Write the values of a row, in the order the tags got their value, which is the order they were read in
+     */
+    private static void writeProperties(JsonGenerator generator, FieldSnapshot snapshot, int row) throws IOException {
+        TagTable tags = snapshot.getTags();
+        for (Format.Tag tag : snapshot.tagsWithValue(row)) {
+            generator.writeStringField(tag.name(), snapshot.value(row, tags.findTagId(tag)));
+        }
+    }
+}
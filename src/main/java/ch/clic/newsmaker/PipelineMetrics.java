@@ -0,0 +1,334 @@
+package ch.clic.newsmaker;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+import javax.management.ConstructorParameters;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency, size and allocation of each operation of the render pipeline: the renders of a field, a section and a
+ * document, the load and the patches of the preview, the .nmkr and HTML files read and written, and the load of a format.
+ * <p>
+ * Every sample is recorded in a histogram of its operation, exposed by the <code>PipelineMetricsMXBean</code>
+ * registered as <code>ch.clic.newsmaker:type=PipelineMetrics</code>, and committed as a JFR event
+ * <code>ch.clic.newsmaker.Pipeline</code> when a recording is running. The size is in characters for the renders and
+ * in bytes for the files. The allocation is only measured on platform threads, the JVM does not count it for virtual
+ * threads, and not for the render of a single field, which takes less time than reading the allocation counter.
+ */
+public final class PipelineMetrics {
+
+    public enum Operation {
+        FIELD_RENDER("field render", false),
+        SECTION_RENDER("section render", true),
+        DOCUMENT_RENDER("document render", true),
+        PREVIEW_LOAD("preview load", true),
+        PREVIEW_PATCH("preview patch", true),
+        DOCUMENT_OPEN("document open", true),
+        DOCUMENT_SAVE("document save", true),
+        HTML_WRITE("HTML write", true),
+        FORMAT_LOAD("format load", true);
+
+        private final String label;
+        private final boolean measuresAllocation; // false for the operations too short to afford reading the counter
+
+        Operation(String label, boolean measuresAllocation) {
+            this.label = label;
+            this.measuresAllocation = measuresAllocation;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * The JFR event of an operation, its duration is the latency of the operation
+     */
+    @Name("ch.clic.newsmaker.Pipeline")
+    @Label("NewsMaker Pipeline")
+    @Category("NewsMaker")
+    @Description("An operation of the render pipeline: a render, a file read or written, a format load")
+    @StackTrace(false)
+    public static final class PipelineEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Size")
+        @Description("Characters rendered, or bytes read or written")
+        long size;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    /**
+     * A running operation, to stop once it is done
+     */
+    public static final class Sample {
+        private final Operation operation;
+        private final long start;
+        private final long allocatedAtStart;
+        private final PipelineEvent event; // null when no recording asks for the event
+
+        private Sample(Operation operation) {
+            this.operation = operation;
+            this.allocatedAtStart = operation.measuresAllocation ? allocatedBytes() : -1;
+            PipelineEvent pipelineEvent = new PipelineEvent();
+            this.event = pipelineEvent.isEnabled() ? pipelineEvent : null;
+            if (event != null) event.begin();
+            this.start = System.nanoTime();
+        }
+
+        /**
+         * Record the operation
+         *
+         * @param size the characters rendered, or the bytes read or written
+         */
+        public void stop(long size) {
+            long nanos = System.nanoTime() - start;
+            long allocatedAtEnd = allocatedAtStart < 0 ? -1 : allocatedBytes();
+            long allocated = allocatedAtStart < 0 || allocatedAtEnd < 0 ? -1 : allocatedAtEnd - allocatedAtStart;
+
+            STATISTICS[operation.ordinal()].record(nanos, size, allocated);
+
+            if (event == null) return;
+            event.end();
+            if (event.shouldCommit()) {
+                event.operation = operation.toString();
+                event.size = size;
+                event.allocated = Math.max(allocated, 0);
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * The statistics of an operation since the start or the last reset, as exposed by the MXBean
+     */
+    public static final class OperationStats {
+        private final String operation;
+        private final long count;
+        private final double meanMicros;
+        private final double p50Micros;
+        private final double p90Micros;
+        private final double p99Micros;
+        private final double maxMicros;
+        private final long totalSize;
+        private final long allocatedBytes;
+
+        @ConstructorParameters({"operation", "count", "meanMicros", "p50Micros", "p90Micros", "p99Micros", "maxMicros", "totalSize", "allocatedBytes"})
+        public OperationStats(String operation, long count, double meanMicros, double p50Micros, double p90Micros,
+                              double p99Micros, double maxMicros, long totalSize, long allocatedBytes) {
+            this.operation = operation;
+            this.count = count;
+            this.meanMicros = meanMicros;
+            this.p50Micros = p50Micros;
+            this.p90Micros = p90Micros;
+            this.p99Micros = p99Micros;
+            this.maxMicros = maxMicros;
+            this.totalSize = totalSize;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMicros() {
+            return meanMicros;
+        }
+
+        /**
+         * @return the median latency, as the upper bound of its histogram bucket
+         */
+        public double getP50Micros() {
+            return p50Micros;
+        }
+
+        public double getP90Micros() {
+            return p90Micros;
+        }
+
+        public double getP99Micros() {
+            return p99Micros;
+        }
+
+        public double getMaxMicros() {
+            return maxMicros;
+        }
+
+        /**
+         * @return the characters rendered, or the bytes read or written, by all the operations
+         */
+        public long getTotalSize() {
+            return totalSize;
+        }
+
+        /**
+         * @return the bytes allocated by the operations measured on platform threads
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    /**
+     * The management interface, <code>ch.clic.newsmaker:type=PipelineMetrics</code>
+     */
+    public interface PipelineMetricsMXBean {
+
+        List<OperationStats> getOperations();
+
+        /**
+         * @return the milliseconds between the process start and the end of each startup phase
+         */
+        Map<String, Long> getStartupPhases();
+
+        void reset();
+    }
+
+    /**
+     * A latency histogram with a bucket for each power of two of nanoseconds
+     */
+    private static final class Statistics {
+        private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder totalSize = new LongAdder();
+        private final LongAdder allocated = new LongAdder();
+
+        void record(long nanos, long size, long allocatedBytes) {
+            buckets.incrementAndGet(Long.SIZE - 1 - Long.numberOfLeadingZeros(Math.max(nanos, 1)));
+            count.increment();
+            totalNanos.add(nanos);
+            maxNanos.accumulate(nanos);
+            totalSize.add(size);
+            if (allocatedBytes > 0) allocated.add(allocatedBytes);
+        }
+
+        OperationStats snapshot(Operation operation) {
+            long n = count.sum();
+            return new OperationStats(operation.toString(), n, n == 0 ? 0 : totalNanos.sum() / 1e3 / n,
+                    percentile(n, 0.5), percentile(n, 0.9), percentile(n, 0.99), maxNanos.get() / 1e3,
+                    totalSize.sum(), allocated.sum());
+        }
+
+        private double percentile(long n, double fraction) {
+            long rank = (long) Math.ceil(n * fraction);
+            long seen = 0;
+            for (int bucket = 0; bucket < buckets.length(); bucket++) {
+                seen += buckets.get(bucket);
+                if (seen >= rank && seen > 0) return Math.min((2L << bucket) / 1e3, maxNanos.get() / 1e3);
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int bucket = 0; bucket < buckets.length(); bucket++) buckets.set(bucket, 0);
+            count.reset();
+            totalNanos.reset();
+            maxNanos.reset();
+            totalSize.reset();
+            allocated.reset();
+        }
+    }
+
+    private static final System.Logger LOGGER = System.getLogger(PipelineMetrics.class.getName());
+    private static final Statistics[] STATISTICS = new Statistics[Operation.values().length];
+    private static final com.sun.management.ThreadMXBean THREADS = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+            && threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled() ? threads : null;
+
+    static {
+        for (int i = 0; i < STATISTICS.length; i++) STATISTICS[i] = new Statistics();
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new PipelineMetricsMXBean() {
+                @Override
+                public List<OperationStats> getOperations() {
+                    return PipelineMetrics.getOperations();
+                }
+
+                @Override
+                public Map<String, Long> getStartupPhases() {
+                    return StartupMetrics.phases();
+                }
+
+                @Override
+                public void reset() {
+                    PipelineMetrics.reset();
+                }
+            }, new ObjectName("ch.clic.newsmaker:type=PipelineMetrics"));
+        } catch (JMException e) {
+            // not shown to the user: the metrics are still measured, only the JMX console cannot read them
+            LOGGER.log(System.Logger.Level.WARNING, "The metrics could not be registered", e);
+        }
+    }
+
+    private PipelineMetrics() {}
+
+    /**
+     * Start measuring an operation
+     *
+     * @param operation the operation
+     * @return the sample to stop once the operation is done
+     */
+    public static Sample start(Operation operation) {
+        return new Sample(operation);
+    }
+
+    /**
+     * @return the statistics of every operation, in the order of the pipeline
+     */
+    public static List<OperationStats> getOperations() {
+        List<OperationStats> operations = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            operations.add(STATISTICS[operation.ordinal()].snapshot(operation));
+        }
+        return operations;
+    }
+
+    public static void reset() {
+        for (Statistics statistics : STATISTICS) statistics.reset();
+    }
+
+    /**
+     * Format the statistics of every operation as a text table
+     *
+     * @return the table
+     */
+    public static String report() {
+        StringBuilder table = new StringBuilder("%-16s %8s %10s %10s %10s %10s %10s %12s %12s%n".formatted(
+                "operation", "count", "mean us", "p50 us", "p90 us", "p99 us", "max us", "size", "allocated"));
+        for (OperationStats stats : getOperations()) {
+            table.append("%-16s %8d %10.1f %10.1f %10.1f %10.1f %10.1f %12d %12d%n".formatted(stats.getOperation(),
+                    stats.getCount(), stats.getMeanMicros(), stats.getP50Micros(), stats.getP90Micros(),
+                    stats.getP99Micros(), stats.getMaxMicros(), stats.getTotalSize(), stats.getAllocatedBytes()));
+        }
+        return table.toString();
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+}
@@ -0,0 +1,201 @@
+package ch.clic.newsmaker;
+
+import javafx.concurrent.Worker;
+import javafx.scene.web.WebEngine;
+import netscape.javascript.JSException;
+import netscape.javascript.JSObject;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keep the page of the preview and update it field by field.
+ * <p>
+ * The page is loaded from a render where the HTML of each field is enclosed in markers (see
+ * <code>NewsDocument.createPreviewJob</code>). Once loaded, a script finds the markers in the DOM. When only the
+ * values of fields changed since, the new HTML of these fields is put between their markers, without parsing and
+ * laying out the page again nor fetching its images, and the scroll position is kept. When fields were added,
+ * removed or moved, or when the base or the format changed, the page is loaded again and scrolled back to where it was.
+ * The images of the patched HTML are taken from the <code>ImageCache</code> when they are in it.
+ * <p>
+ * Must be used on the FX thread.
+ */
+public final class PreviewPatcher {
+
+    private static final System.Logger LOGGER = System.getLogger(PreviewPatcher.class.getName());
+
+    // indexes the markers of the page, then replaces the nodes between the markers of a field
+    private static final String PATCH_SCRIPT = """
+            (function () {
+                var markers = {};
+                var opened = {};
+                var patchable = true;
+                var walker = document.createTreeWalker(document, NodeFilter.SHOW_COMMENT, null, false);
+                for (var node = walker.nextNode(); node; node = walker.nextNode()) {
+                    var text = node.data;
+                    if (text.lastIndexOf('nmkr:', 0) === 0) {
+                        var key = text.substring(5);
+                        (opened[key] = opened[key] || []).push(node);
+                    } else if (text.lastIndexOf('/nmkr:', 0) === 0) {
+                        var key = text.substring(6);
+                        var start = opened[key] && opened[key].pop();
+                        if (!start || start.parentNode !== node.parentNode) {
+                            patchable = false; // the HTML of the field is not well-formed, the parser moved its markers
+                            continue;
+                        }
+                        (markers[key] = markers[key] || []).push([start, node]);
+                    }
+                }
+                window.nmkrPatch = function (key, html) {
+                    var pairs = markers[key] || [];
+                    for (var i = 0; i < pairs.length; i++) {
+                        var range = document.createRange();
+                        range.setStartAfter(pairs[i][0]);
+                        range.setEndBefore(pairs[i][1]);
+                        range.deleteContents();
+                        range.insertNode(range.createContextualFragment(html));
+                    }
+                };
+                return patchable;
+            })()
+            """;
+
+    /**
+     * The fields of a render, in the order of the page
+     */
+    private record Page(Format format, BaseTemplate base, List<NewsFieldBean> fields, List<String> sections, long[] revisions) {}
+
+    private final WebEngine engine;
+    private final ImageCache images;
+    private Page shown; // the render shown or being loaded, null before the first one
+    private Page pending; // the render being prepared
+    private NewsDocument.RenderJob pendingJob;
+    private boolean patchable; // true once the page is loaded and its markers are found
+    private double scrollX;
+    private double scrollY;
+
+    /**
+     * @param engine the engine of the preview
+     * @param images the local copies of the images of the preview
+     */
+    public PreviewPatcher(WebEngine engine, ImageCache images) {
+        this.engine = engine;
+        this.images = images;
+
+        engine.getLoadWorker().stateProperty().addListener((o, oldState, newState) -> {
+            if (newState == Worker.State.SUCCEEDED) {
+                loaded();
+            } else {
+                patchable = false;
+            }
+        });
+    }
+
+    /**
+     * Capture a render of the document with the fields marked, to show with <code>show</code> once rendered
+     *
+     * @param document the document
+     * @return the render job
+     */
+    public NewsDocument.RenderJob prepare(NewsDocument document) {
+        pendingJob = document.createPreviewJob();
+        pending = capture(document);
+        return pendingJob;
+    }
+
+    /**
+     * Load a rendered page in the preview
+     *
+     * @param job the job which rendered the page, returned by <code>prepare</code>
+     * @param html the HTML of the page
+     */
+    public void show(NewsDocument.RenderJob job, String html) {
+        if (job == pendingJob) {
+            shown = pending;
+            pending = null;
+            pendingJob = null;
+        }
+
+        if (patchable) {
+            Object x = engine.executeScript("window.scrollX");
+            Object y = engine.executeScript("window.scrollY");
+            scrollX = x instanceof Number n ? n.doubleValue() : 0;
+            scrollY = y instanceof Number n ? n.doubleValue() : 0;
+        }
+        patchable = false;
+        engine.loadContent(html);
+    }
+
+    /**
+     * Put the new HTML of the changed fields in the page, if nothing else changed
+     *
+     * @param document the document shown in the preview
+     * @return true if the page is up to date, false if it must be rendered and loaded again
+     */
+    public boolean patch(NewsDocument document) {
+        if (!patchable || shown == null) return false;
+
+        Page current = capture(document);
+        if (current.format() != shown.format() || current.base() != shown.base()
+                || !sameFields(current.fields(), shown.fields()) || !current.sections().equals(shown.sections())) {
+            return false;
+        }
+
+        PipelineMetrics.Sample sample = PipelineMetrics.start(PipelineMetrics.Operation.PREVIEW_PATCH);
+        long size = 0;
+        try {
+            JSObject window = (JSObject) engine.executeScript("window");
+            for (int i = 0; i < current.fields().size(); i++) {
+                if (current.revisions()[i] == shown.revisions()[i]) continue;
+
+                NewsFieldBean field = current.fields().get(i);
+                for (String language : current.format().languages) {
+                    String html = images.localize(field.getHTML(language));
+                    window.call("nmkrPatch", NewsDocument.fieldKey(field, language), html);
+                    size += html.length();
+                }
+                shown.revisions()[i] = current.revisions()[i];
+            }
+        } catch (JSException e) {
+            // not shown to the user: the page is rendered and loaded again
+            LOGGER.log(System.Logger.Level.WARNING, "The preview could not be patched", e);
+            return false;
+        } finally {
+            sample.stop(size);
+        }
+        return true;
+    }
+
+    private void loaded() {
+        try {
+            patchable = Boolean.TRUE.equals(engine.executeScript(PATCH_SCRIPT));
+            if (scrollX != 0 || scrollY != 0) engine.executeScript("window.scrollTo(" + scrollX + ", " + scrollY + ")");
+        } catch (JSException e) {
+            patchable = false; // JavaScript is disabled in the page
+        }
+    }
+
+    private static Page capture(NewsDocument document) {
+        List<NewsFieldBean> fields = new ArrayList<>();
+        List<String> sections = new ArrayList<>();
+        for (Map.Entry<String, List<NewsFieldBean>> section : document.getFieldSectionMap().entrySet()) {
+            fields.addAll(section.getValue());
+            sections.add(section.getKey() + ":" + section.getValue().size());
+        }
+
+        long[] revisions = new long[fields.size()];
+        for (int i = 0; i < revisions.length; i++) revisions[i] = fields.get(i).revisionProperty().get();
+
+        Format format = document.getFormat();
+        return new Page(format, format.getCompiledBase(), fields, sections, revisions);
+    }
+
+    private static boolean sameFields(List<NewsFieldBean> fields, List<NewsFieldBean> others) {
+        if (fields.size() != others.size()) return false;
+        for (int i = 0; i < fields.size(); i++) {
+            if (fields.get(i) != others.get(i)) return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,284 @@
+package ch.clic.newsmaker;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serve the current document over HTTP, so it can be looked at in a browser on another device.
+ * <p>
+ * <code>/</code> is the whole document, as exported, and <code>/LANGUAGE</code> the edition of a language. Each page
+ * is rendered once per published revision of the document, by the first request asking for it, and the same bytes
+ * are then sent to every viewer: compressed with gzip when the browser accepts it, and not at all when the browser
+ * already has them (strong <code>ETag</code> and <code>If-None-Match</code>). The pages listen to
+ * <code>/events</code>, a stream of server-sent events, and reload themselves when a new revision is published.
+ * <p>
+ * Each request is handled on its own virtual thread, so the event streams kept open by the viewers cost no platform
+ * thread. <code>publish</code> must be called on the thread editing the document.
+ */
+public final class PreviewServer implements AutoCloseable {
+
+    public static final int DEFAULT_PORT = 8642;
+    private static final String EVENTS_PATH = "/events";
+    private static final long KEEP_ALIVE_SECONDS = 15; // a comment is sent on idle event streams so proxies keep them open
+    private static final byte[] RELOAD_SCRIPT = """
+            <script>new EventSource("/events").addEventListener("reload", function () { location.reload(); });</script>
+            """.getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * A page rendered once, in the encodings sent to the viewers
+     */
+    private record Rendered(byte[] html, byte[] gzip, String etag) {}
+
+    /**
+     * A page of a published revision, rendered by the first request asking for it
+     */
+    private static final class Edition {
+        private final NewsDocument.RenderJob job;
+        private Rendered rendered;
+
+        private Edition(NewsDocument.RenderJob job) {
+            this.job = job;
+        }
+
+        synchronized Rendered get() throws IOException {
+            if (rendered == null) {
+                byte[] html = withReloadScript(job.render().getBytes(StandardCharsets.UTF_8));
+
+                ByteArrayOutputStream compressed = new ByteArrayOutputStream(html.length / 4);
+                try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+                    gzip.write(html);
+                }
+                rendered = new Rendered(html, compressed.toByteArray(), etag(html));
+            }
+            return rendered;
+        }
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile Map<String, Edition> editions = Map.of(); // the pages of the last published revision, by path
+    private volatile long revision = -1; // the last published revision
+    private final List<BlockingQueue<Long>> viewers = new CopyOnWriteArrayList<>(); // the revisions to push to each event stream
+    private volatile boolean running = true;
+
+    private PreviewServer(HttpServer server) {
+        this.server = server;
+        server.setExecutor(executor);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * Start a server listening on every network interface
+     *
+     * @param port the port, 0 for any free port
+     * @return the server
+     * @throws IOException if the port could not be used
+     */
+    public static PreviewServer start(int port) throws IOException {
+        return new PreviewServer(HttpServer.create(new InetSocketAddress(port), 0));
+    }
+
+    /**
+     * @return the port the server listens to
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * @return the paths of the pages of the last published revision
+     */
+    public List<String> getPaths() {
+        return List.copyOf(editions.keySet());
+    }
+
+    /**
+     * Serve the current revision of a document, and tell the viewers to reload. The document is only captured here,
+     * it is rendered when a page is first asked for.
+     *
+     * @param document the document
+     */
+    public void publish(NewsDocument document) {
+        if (document.getRevision() == revision && !editions.isEmpty()) return;
+
+        Map<String, Edition> published = new LinkedHashMap<>();
+        published.put("/", new Edition(document.createRenderJob()));
+        for (String language : document.getFormat().languages) {
+            published.put("/" + language.toLowerCase(Locale.ROOT), new Edition(document.createRenderJob(language)));
+        }
+
+        editions = published;
+        revision = document.getRevision();
+        viewers.forEach(viewer -> viewer.offer(revision));
+    }
+
+    /**
+     * Stop the server and close the event streams
+     */
+    @Override
+    public void close() {
+        running = false;
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String method = exchange.getRequestMethod();
+            if (!method.equals("GET") && !method.equals("HEAD")) {
+                exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            String path = exchange.getRequestURI().getPath().toLowerCase(Locale.ROOT);
+            if (path.length() > 1 && path.endsWith("/")) path = path.substring(0, path.length() - 1);
+
+            if (path.equals(EVENTS_PATH)) {
+                streamEvents(exchange);
+                return;
+            }
+
+            Edition edition = editions.get(path);
+            if (edition == null) {
+                send(exchange, 404, "text/plain", ("Not found, the pages are " + String.join(" ", editions.keySet()))
+                        .getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+
+            sendPage(exchange, edition.get());
+        }
+    }
+
+    private void sendPage(HttpExchange exchange, Rendered page) throws IOException {
+        Headers request = exchange.getRequestHeaders();
+        boolean gzip = accepts(request.get("Accept-Encoding"), "gzip");
+        String etag = gzip ? page.etag().replaceFirst("\"$", "-gzip\"") : page.etag();
+
+        Headers response = exchange.getResponseHeaders();
+        response.set("ETag", etag);
+        response.set("Cache-Control", "no-cache"); // the browser keeps the page but asks whether it changed
+        response.set("Vary", "Accept-Encoding");
+
+        if (matches(request.get("If-None-Match"), etag)) {
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+
+        if (gzip) response.set("Content-Encoding", "gzip");
+        send(exchange, 200, "text/html; charset=utf-8", gzip ? page.gzip() : page.html());
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        if (exchange.getRequestMethod().equals("HEAD")) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, body.length);
+        exchange.getResponseBody().write(body);
+    }
+
+    /**
+     * Keep the response open and write an event each time a revision is published, until the viewer leaves
+     */
+    private void streamEvents(HttpExchange exchange) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+        exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+        exchange.sendResponseHeaders(200, 0);
+
+        BlockingQueue<Long> published = new LinkedBlockingQueue<>();
+        viewers.add(published);
+        try {
+            OutputStream out = exchange.getResponseBody();
+            out.write("retry: 2000\n\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            while (running) {
+                Long next = published.poll(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+                String event = next == null ? ": keep-alive\n\n" : "event: reload\ndata: " + next + "\n\n";
+                out.write(event.getBytes(StandardCharsets.UTF_8));
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            // the server is stopped
+        } catch (IOException e) {
+            // the viewer left
+        } finally {
+            viewers.remove(published);
+        }
+    }
+
+    private static boolean accepts(List<String> acceptEncoding, String encoding) {
+        if (acceptEncoding == null) return false;
+        for (String header : acceptEncoding) {
+            for (String coding : header.split(",")) {
+                String[] parts = coding.trim().split(";");
+                if (parts[0].trim().equalsIgnoreCase(encoding)) {
+                    return parts.length < 2 || !parts[1].trim().replace(" ", "").matches("q=0(\\.0*)?");
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(List<String> ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) return false;
+        for (String header : ifNoneMatch) {
+            for (String tag : header.split(",")) {
+                String trimmed = tag.trim();
+                if (trimmed.equals("*") || trimmed.equals(etag)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Insert the script reloading the page before the end of its body, or at its end if it has no body
+     */
+    private static byte[] withReloadScript(byte[] html) {
+        String text = new String(html, StandardCharsets.ISO_8859_1); // one char per byte, to find the offset of the tag
+        int end = text.toLowerCase(Locale.ROOT).lastIndexOf("</body");
+        if (end < 0) end = html.length;
+
+        byte[] page = new byte[html.length + RELOAD_SCRIPT.length];
+        System.arraycopy(html, 0, page, 0, end);
+        System.arraycopy(RELOAD_SCRIPT, 0, page, end, RELOAD_SCRIPT.length);
+        System.arraycopy(html, end, page, end + RELOAD_SCRIPT.length, html.length - end);
+        return page;
+    }
+
+    /**
+     * @return a strong entity tag, the hash of the bytes sent
+     */
+    private static String etag(byte[] html) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(html);
+            return '"' + HexFormat.of().formatHex(digest, 0, 16) + '"';
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is always available", e);
+        }
+    }
+}
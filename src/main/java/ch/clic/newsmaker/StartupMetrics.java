@@ -0,0 +1,59 @@
+package ch.clic.newsmaker;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
+/**
+ * The time taken by each phase of the startup, measured from the start of the process.
+ * <p>
+ * The phases are marked by the threads doing them, the format is loaded in the background while the window is shown.
+ * The times are shown in the statistics tab, and printed once the first preview is shown when NewsMaker is started
+ * with <code>-Dnewsmaker.startupReport=true</code>.
+ */
+public final class StartupMetrics {
+
+    public static final String WINDOW_SHOWN = "window";
+    public static final String FORMAT_LOADED = "format";
+    public static final String DOCUMENT_READY = "document";
+    public static final String FIRST_PREVIEW = "first preview";
+
+    private static final Instant PROCESS_START = ProcessHandle.current().info().startInstant().orElse(Instant.now());
+    private static final Map<String, Long> PHASES = new LinkedHashMap<>(); // milliseconds since the process start, by phase
+    private static final boolean PRINTED = Boolean.getBoolean("newsmaker.startupReport");
+    private static boolean reported;
+
+    private StartupMetrics() {}
+
+    /**
+     * Record the end of a phase, only the first time it ends
+     *
+     * @param phase the name of the phase
+     */
+    public static synchronized void mark(String phase) {
+        PHASES.putIfAbsent(phase, Duration.between(PROCESS_START, Instant.now()).toMillis());
+    }
+
+    /**
+     * @return the milliseconds between the process start and the end of each phase, in the order they ended
+     */
+    public static synchronized Map<String, Long> phases() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(PHASES));
+    }
+
+    /**
+     * Print the time of each phase, only the first time and only if the system property
+     * <code>newsmaker.startupReport</code> is true
+     */
+    public static synchronized void report() {
+        if (!PRINTED || reported) return;
+        reported = true;
+
+        StringJoiner line = new StringJoiner(", ", "Startup: ", "");
+        PHASES.forEach((phase, millis) -> line.add(phase + " " + millis + " ms"));
+        System.out.println(line);
+    }
+}
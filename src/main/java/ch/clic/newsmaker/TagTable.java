@@ -0,0 +1,125 @@
+package ch.clic.newsmaker;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The symbol table of the tags and languages of a <code>Format</code>.
+ * <p>
+ * Each tag has a single canonical <code>Format.Tag</code> instance with a dense ordinal, used to index the values of a
+ * field in a flat array (see <code>FieldSnapshot</code>). The ordinals are given in the order the tags and languages
+ * are first seen and never change: a tag found later in a template or in a .nmkr file gets the next free ordinal.
+ */
+public final class TagTable {
+
+    private final Map<String, Format.Tag> invariantTags = new ConcurrentHashMap<>(); // the language-constant tags by name
+    private final Map<String, Format.Tag> variantTags = new ConcurrentHashMap<>(); // the language-variant tags by name
+    private final Map<String, Integer> languageIds = new ConcurrentHashMap<>();
+    private volatile Format.Tag[] tags = new Format.Tag[0]; // the tags by ordinal
+    private volatile String[] languages = new String[0]; // the languages by id
+
+    /**
+     * Return the canonical tag with a name, creating it the first time it is asked for
+     *
+     * @param name the name of the tag
+     * @param languageVariant true if the tag has a value for each language
+     * @return the canonical tag
+     */
+    public Format.Tag intern(String name, boolean languageVariant) {
+        Format.Tag tag = (languageVariant ? variantTags : invariantTags).get(name);
+        return tag != null ? tag : addTag(name, languageVariant);
+    }
+
+    /**
+     * @param tag a tag, canonical or not
+     * @return the canonical tag equal to <code>tag</code>
+     */
+    public Format.Tag intern(Format.Tag tag) {
+        return tag.ordinalIn(this) >= 0 ? tag : intern(tag.name(), tag.isLanguageVariant());
+    }
+
+    /**
+     * Return the ordinal of a tag, giving it the next free ordinal the first time it is seen
+     *
+     * @param tag the tag
+     * @return the ordinal of the tag
+     */
+    public int tagId(Format.Tag tag) {
+        int ordinal = tag.ordinalIn(this);
+        return ordinal >= 0 ? ordinal : intern(tag.name(), tag.isLanguageVariant()).ordinalIn(this);
+    }
+
+    /**
+     * @param tag the tag
+     * @return the ordinal of the tag, or -1 if the tag was never seen
+     */
+    public int findTagId(Format.Tag tag) {
+        int ordinal = tag.ordinalIn(this);
+        if (ordinal >= 0) return ordinal;
+
+        Format.Tag canonical = (tag.isLanguageVariant() ? variantTags : invariantTags).get(tag.name());
+        return canonical != null ? canonical.ordinalIn(this) : -1;
+    }
+
+    public Format.Tag tag(int id) {
+        return tags[id];
+    }
+
+    public int tagCount() {
+        return tags.length;
+    }
+
+    /**
+     * Return the id of a language, giving it the next free id the first time it is seen
+     *
+     * @param language the language
+     * @return the id of the language
+     */
+    public int languageId(String language) {
+        Integer id = languageIds.get(language);
+        return id != null ? id : addLanguage(language);
+    }
+
+    /**
+     * @param language the language
+     * @return the id of the language, or -1 if the language was never seen
+     */
+    public int findLanguageId(String language) {
+        Integer id = languageIds.get(language);
+        return id != null ? id : -1;
+    }
+
+    public String language(int id) {
+        return languages[id];
+    }
+
+    public int languageCount() {
+        return languages.length;
+    }
+
+    private synchronized Format.Tag addTag(String name, boolean languageVariant) {
+        Map<String, Format.Tag> byName = languageVariant ? variantTags : invariantTags;
+        Format.Tag tag = byName.get(name);
+        if (tag != null) return tag;
+
+        // the array is published before the tag, so the ordinal of a tag read from the maps is always valid in the array
+        tag = new Format.Tag(name, languageVariant, this, tags.length);
+        Format.Tag[] grown = Arrays.copyOf(tags, tags.length + 1);
+        grown[tags.length] = tag;
+        tags = grown;
+        byName.put(name, tag);
+        return tag;
+    }
+
+    private synchronized int addLanguage(String language) {
+        Integer id = languageIds.get(language);
+        if (id != null) return id;
+
+        String[] grown = Arrays.copyOf(languages, languages.length + 1);
+        grown[languages.length] = language;
+        languages = grown;
+        languageIds.put(language, languages.length - 1);
+        return languages.length - 1;
+    }
+}
@@ -0,0 +1,123 @@
+package ch.clic.newsmaker;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The templates of a <code>Format</code>, each read and compiled only once.
+ * <p>
+ * Templates are shared by content: every preset and every field using the same template hold the same
+ * <code>CompiledTemplate</code> instance, even when the template comes from a .nmkr file.
+ */
+public final class TemplateRegistry {
+
+    private final Path folder; // the folder of the template files
+    private final TagTable tags = new TagTable(); // the ids of the tags of the templates
+    private final Map<String, CompiledTemplate> templatesByFile = new ConcurrentHashMap<>();
+    private final Map<String, CompiledTemplate> templatesBySource = new ConcurrentHashMap<>();
+
+    /**
+     * @param folder the folder in which template files are looked for
+     */
+    public TemplateRegistry(Path folder) {
+        this.folder = folder;
+    }
+
+    public Path getFolder() {
+        return folder;
+    }
+
+    public TagTable getTags() {
+        return tags;
+    }
+
+    /**
+     * Return the compiled template of a template file, reading the file only the first time it is asked for
+     *
+     * @param fileName the name of the template file, relative to the folder of the registry
+     * @return the compiled template
+     * @throws IOException if the file could not be read
+     */
+    public CompiledTemplate load(String fileName) throws IOException {
+        CompiledTemplate template = templatesByFile.get(fileName);
+        if (template == null) {
+            template = intern(FileManager.readContentOfFile(folder.resolve(fileName).toFile()));
+            CompiledTemplate previous = templatesByFile.putIfAbsent(fileName, template);
+            if (previous != null) template = previous;
+        }
+        return template;
+    }
+
+    /**
+     * Read template files in parallel, each on its own virtual thread, then compile them in the given order so the
+     * tags get the same ids on every run
+     *
+     * @param fileNames the names of the template files, relative to the folder of the registry
+     * @throws IOException if a file could not be read
+     */
+    public void preload(Collection<String> fileNames) throws IOException {
+        Map<String, Future<String>> contents = new LinkedHashMap<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (String fileName : fileNames) {
+                if (!templatesByFile.containsKey(fileName) && !contents.containsKey(fileName)) {
+                    contents.put(fileName, executor.submit(() -> FileManager.readContentOfFile(folder.resolve(fileName).toFile())));
+                }
+            }
+        }
+
+        for (Map.Entry<String, Future<String>> content : contents.entrySet()) {
+            try {
+                templatesByFile.putIfAbsent(content.getKey(), intern(content.getValue().get()));
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while reading " + content.getKey());
+            }
+        }
+    }
+
+    /**
+     * @param fileName the name of a template file
+     * @return true if the file was loaded by the registry, else false
+     */
+    public boolean isLoaded(String fileName) {
+        return templatesByFile.containsKey(fileName);
+    }
+
+    /**
+     * Read a template file again after it changed. The templates with the old content stay available to the fields
+     * still using them.
+     *
+     * @param fileName the name of the template file, relative to the folder of the registry
+     * @return the template before the file changed, or <code>null</code> if the file was never loaded
+     * @throws IOException if the file could not be read, the old template is then kept
+     */
+    public CompiledTemplate reload(String fileName) throws IOException {
+        CompiledTemplate previous = templatesByFile.get(fileName);
+        if (previous == null) return null;
+
+        templatesByFile.put(fileName, intern(FileManager.readContentOfFile(folder.resolve(fileName).toFile())));
+        return previous;
+    }
+
+    /**
+     * Return the shared compiled template with the given content, compiling it only the first time it is seen
+     *
+     * @param source the content of the template
+     * @return the compiled template
+     */
+    public CompiledTemplate intern(String source) {
+        if (source == null || source.isEmpty()) return CompiledTemplate.EMPTY;
+        return templatesBySource.computeIfAbsent(source, s -> CompiledTemplate.compile(s, tags));
+    }
+}
@@ -2,7 +2,13 @@ module ch.clic.newsmaker {
     requires javafx.controls;
     requires javafx.fxml;
     requires javafx.web;
+    requires jdk.jsobject;
+    requires java.net.http;
+    requires jdk.httpserver;
     requires com.fasterxml.jackson.databind;
+    requires java.management;
+    requires jdk.management;
+    requires jdk.jfr;
 
 
     opens ch.clic.newsmaker to javafx.fxml;
@@ -0,0 +1,201 @@
+package ch.clic.newsmaker;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ArchiveIndexTest {
+
+    private static final Format.Tag TITLE = new Format.Tag("TITLE", true);
+    private static final Format.Tag URL = new Format.Tag("URL", false);
+
+    @TempDir
+    Path folder;
+
+    private Format format;
+    private Path archive;
+
+    @BeforeEach
+    void createFormat() throws IOException {
+        format = TestFormats.create(folder.resolve("format"));
+        archive = Files.createDirectories(folder.resolve("archive"));
+    }
+
+    /**
+     * Save a document in the archive with a field for each title, in French and with an English title prefixed by "en"
+     */
+    private Path save(String name, NmkrFile.Encoding encoding, String... titles) throws IOException {
+        NewsDocument document = new NewsDocument(format);
+        for (String title : titles) {
+            NewsFieldBean field = document.createField(NewsDocument.DEFAULT_SECTION);
+            field.setPropertyValue(TITLE, TestFormats.FRENCH, title);
+            field.setPropertyValue(TITLE, TestFormats.ENGLISH, "en " + title);
+        }
+        Path file = archive.resolve(name);
+        document.save(file, encoding);
+        return file;
+    }
+
+    private Path save(String name, String... titles) throws IOException {
+        return save(name, NmkrFile.Encoding.JSON, titles);
+    }
+
+    private static List<String> titles(List<ArchiveIndex.Hit> hits) {
+        return hits.stream().map(ArchiveIndex.Hit::title).sorted().toList();
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        ArchiveIndex.tokenize(text, words::add);
+        return words;
+    }
+
+    @Test
+    void tokenizeIgnoresCaseAccentsAndMarkup() {
+        assertEquals(List.of("assemblee", "generale", "du", "mai"),
+                tokenize("<b>Assemblée</b>&nbsp;GÉNÉRALE, du 1 mai!"));
+        assertEquals(List.of("l2", "cafe"), tokenize("l2-café"));
+        assertEquals(List.of("short"), tokenize("short " + "x".repeat(65)));
+    }
+
+    @Test
+    void searchFindsTheFieldsWithAllTheWords() throws IOException {
+        save("2022.nmkr", "General assembly", "Summer party");
+        save("2023.nmkr", "Spring assembly");
+        ArchiveIndex index = ArchiveIndex.open(archive, folder.resolve("index"));
+        index.update(format);
+
+        assertEquals(List.of("General assembly", "Spring assembly"), titles(index.search("ASSEMBLY", null, null, null, 10)));
+        assertEquals(List.of("General assembly"), titles(index.search("assembly general", null, null, null, 10)));
+        assertEquals(List.of(), titles(index.search("general party", null, null, null, 10)));
+        assertEquals(3, index.fieldCount());
+    }
+
+    @Test
+    void theLastWordIsAPrefix() throws IOException {
+        save("2022.nmkr", "General assembly", "Generous donors");
+        ArchiveIndex index = ArchiveIndex.open(archive, folder.resolve("index"));
+        index.update(format);
+
+        assertEquals(List.of("General assembly", "Generous donors"), titles(index.search("gener", null, null, null, 10)));
+        assertEquals(List.of("General assembly"), titles(index.search("genera", null, null, null, 10)));
+        // only the last word
+        assertEquals(List.of(), titles(index.search("gener assembly", null, null, null, 10)));
+        assertEquals(List.of("General assembly"), titles(index.search("general assem", null, null, null, 10)));
+    }
+
+    @Test
+    void searchCanBeNarrowedToALanguage() throws IOException {
+        save("2022.nmkr", "Meeting");
+        ArchiveIndex index = ArchiveIndex.open(archive, folder.resolve("index"));
+        index.update(format);
+
+        assertEquals(1, index.search("en meeting", TestFormats.ENGLISH, null, null, 10).size());
+        assertEquals(0, index.search("en meeting", TestFormats.FRENCH, null, null, 10).size());
+        assertEquals(List.of(TestFormats.FRENCH, TestFormats.ENGLISH), index.getLanguages());
+        assertEquals(List.of("news"), index.getPresets());
+    }
+
+    @Test
+    void onlyTheChangedFilesAreReadAgain() throws IOException {
+        save("2022.nmkr", "General assembly");
+        Path changed = save("2023.nmkr", "Spring party");
+        ArchiveIndex index = ArchiveIndex.open(archive, folder.resolve("index"));
+        assertEquals(2, index.update(format));
+        assertEquals(0, index.update(format));
+
+        save("2023.nmkr", "Autumn party", "Winter party");
+        Files.setLastModifiedTime(changed, FileTime.fromMillis(Files.getLastModifiedTime(changed).toMillis() + 2000));
+        save("2024.nmkr", "New year");
+
+        // the index is saved, an index opened again knows the files already read
+        ArchiveIndex reopened = ArchiveIndex.open(archive, folder.resolve("index"));
+        assertEquals(2, reopened.update(format));
+
+        assertEquals(List.of("Autumn party", "Winter party"), titles(reopened.search("party", null, null, null, 10)));
+        assertEquals(List.of("General assembly"), titles(reopened.search("assembly", null, null, null, 10)));
+        assertEquals(4, reopened.fieldCount());
+
+        Files.delete(changed);
+        assertEquals(0, reopened.update(format));
+        assertEquals(List.of(), titles(reopened.search("party", null, null, null, 10)));
+        assertEquals(2, reopened.fieldCount());
+    }
+
+    @Test
+    void theFilesWhichCouldNotBeReadAreSkipped() throws IOException {
+        save("2022.nmkr", "General assembly");
+        Path corrupted = Files.writeString(archive.resolve("2023.nmkr"), "{ \"NEWS\" : [ { \"section\" : ");
+        ArchiveIndex index = ArchiveIndex.open(archive, folder.resolve("index"));
+
+        assertEquals(1, index.update(format));
+        assertEquals(List.of(corrupted), index.getUnreadFiles());
+        assertEquals(1, index.fieldCount());
+
+        Files.delete(corrupted);
+        index.update(format);
+        assertEquals(List.of(), index.getUnreadFiles());
+    }
+
+    @Test
+    void theDeletedFilesAreCompacted() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (int year = 2020; year < 2024; year++) files.add(save(year + ".nmkr", "Meeting " + year));
+        ArchiveIndex index = ArchiveIndex.open(archive, folder.resolve("index"));
+        index.update(format);
+
+        // three files out of four deleted, the index is compacted when it is saved
+        for (Path file : files.subList(0, 3)) Files.delete(file);
+        index.update(format);
+
+        ArchiveIndex rebuilt = ArchiveIndex.open(archive, folder.resolve("rebuilt"));
+        rebuilt.update(format);
+        assertArrayEquals(Files.readAllBytes(folder.resolve("rebuilt")), Files.readAllBytes(folder.resolve("index")));
+        assertEquals(List.of("Meeting 2023"), titles(ArchiveIndex.open(archive, folder.resolve("index")).search("meeting", null, null, null, 10)));
+    }
+
+    @Test
+    void aHitIsImportedUnlessItsFileChanged() throws IOException {
+        for (NmkrFile.Encoding encoding : NmkrFile.Encoding.values()) {
+            Path file = save("2022-" + encoding + ".nmkr", encoding, "General assembly", "Summer party");
+            ArchiveIndex index = ArchiveIndex.open(archive, folder.resolve("index-" + encoding));
+            index.update(format);
+
+            ArchiveIndex.Hit hit = index.search("party", null, null, null, 10).stream()
+                    .filter(found -> found.file().equals(file)).findFirst().orElseThrow();
+            assertTrue(hit.isCurrent());
+            NewsDocument document = new NewsDocument(format);
+            NewsFieldBean imported = document.importField(hit.file(), hit.field());
+            assertEquals("Summer party", imported.getSnapshot().value(TITLE, TestFormats.FRENCH));
+            assertEquals(List.of(imported), document.getFields());
+
+            save(file.getFileName().toString(), encoding, "Summer party");
+            Files.setLastModifiedTime(file, FileTime.fromMillis(hit.modified() + 2000));
+            assertFalse(hit.isCurrent());
+        }
+    }
+
+    @Test
+    void aFieldWithoutTitleShowsItsFirstValue() throws IOException {
+        NewsDocument document = new NewsDocument(format);
+        document.createField(NewsDocument.DEFAULT_SECTION).setPropertyValue(URL, "https://example.org/archive");
+        document.save(archive.resolve("2022.nmkr"));
+        ArchiveIndex index = ArchiveIndex.open(archive, folder.resolve("index"));
+        index.update(format);
+
+        assertEquals(List.of("https://example.org/archive"), titles(index.search("example", null, null, null, 10)));
+        assertEquals(List.of(), titles(index.search("title", null, null, null, 10)));
+    }
+}
@@ -0,0 +1,183 @@
+package ch.clic.newsmaker;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AutosaveJournalTest {
+
+    private static final Format.Tag TITLE = new Format.Tag("TITLE", true);
+    private static final String JOURNAL = "autosave.journal";
+    private static final int HEADER_SIZE = Integer.BYTES + Long.BYTES + 1;
+
+    @TempDir
+    Path folder;
+
+    private Format format;
+    private Path autosave;
+
+    @BeforeEach
+    void createFormat() throws IOException {
+        format = TestFormats.create(folder.resolve("format"));
+        autosave = folder.resolve("autosave");
+    }
+
+    /**
+     * Start the autosave of a document with one field, then edit it. The last record of the journal sets the title of
+     * the first field to "last".
+     */
+    private NewsDocument editWithAutosave() throws IOException {
+        NewsDocument document = new NewsDocument(format);
+        NewsFieldBean first = document.createField(NewsDocument.DEFAULT_SECTION);
+        first.setPropertyValue(TITLE, TestFormats.ENGLISH, "in the snapshot");
+
+        AutosaveJournal journal = AutosaveJournal.start(document, autosave);
+        NewsFieldBean second = document.createField("EVENTS");
+        second.setPropertyValue(TITLE, TestFormats.FRENCH, "ajouté");
+        NewsFieldBean third = document.createField(NewsDocument.DEFAULT_SECTION);
+        document.moveField(third, -1);
+        document.removeField(second);
+        first.setPropertyValue(TITLE, TestFormats.ENGLISH, "edited");
+        first.setPropertyValue(TITLE, TestFormats.ENGLISH, "last");
+        journal.close();
+        return document;
+    }
+
+    private NewsDocument recover() throws IOException {
+        NewsDocument recovered = new NewsDocument(format);
+        AutosaveJournal.recover(recovered, autosave);
+        return recovered;
+    }
+
+    private static Map<String, List<FieldSnapshot>> content(NewsDocument document) {
+        return NmkrFile.snapshots(document.getFieldSectionMap());
+    }
+
+    /**
+     * @return the offset of each record of the journal, and the size of the journal at the end
+     */
+    private List<Integer> recordOffsets() throws IOException {
+        ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(autosave.resolve(JOURNAL)));
+        List<Integer> offsets = new ArrayList<>();
+        journal.position(HEADER_SIZE);
+        while (journal.hasRemaining()) {
+            offsets.add(journal.position());
+            int length = journal.getInt();
+            journal.position(journal.position() + Integer.BYTES + length); // the checksum and the content
+        }
+        offsets.add(journal.position());
+        return offsets;
+    }
+
+    private void truncateJournal(int size) throws IOException {
+        byte[] journal = Files.readAllBytes(autosave.resolve(JOURNAL));
+        Files.write(autosave.resolve(JOURNAL), Arrays.copyOf(journal, size));
+    }
+
+    @Test
+    void recoverReplaysTheJournalOnTheSnapshot() throws IOException {
+        NewsDocument document = editWithAutosave();
+
+        assertTrue(AutosaveJournal.hasRecoverableWork(autosave));
+        NewsDocument recovered = recover();
+
+        assertEquals(content(document), content(recovered));
+        assertFalse(recovered.hasNotChanged());
+    }
+
+    @Test
+    void recoverStopsAtARecordCutByACrash() throws IOException {
+        editWithAutosave();
+        List<Integer> offsets = recordOffsets();
+        int lastRecord = offsets.get(offsets.size() - 2);
+
+        // every complete record, as if the crash happened between two records
+        truncateJournal(lastRecord);
+        Map<String, List<FieldSnapshot>> completeRecords = content(recover());
+
+        // the last record cut in its checksum, then in its content
+        for (int cut : new int[]{lastRecord + Integer.BYTES + 2, offsets.get(offsets.size() - 1) - 1}) {
+            editWithAutosave();
+            truncateJournal(cut);
+            NewsDocument recovered = recover();
+
+            assertEquals(completeRecords, content(recovered));
+            NewsFieldBean first = recovered.getFieldSectionMap().get(NewsDocument.DEFAULT_SECTION).get(1);
+            assertEquals("edited", first.getSnapshot().value(TITLE, TestFormats.ENGLISH));
+        }
+    }
+
+    @Test
+    void recoverStopsAtACorruptedRecord() throws IOException {
+        editWithAutosave();
+        List<Integer> offsets = recordOffsets();
+        int middle = offsets.size() / 2;
+
+        truncateJournal(offsets.get(middle));
+        Map<String, List<FieldSnapshot>> before = content(recover());
+
+        editWithAutosave();
+        byte[] journal = Files.readAllBytes(autosave.resolve(JOURNAL));
+        journal[offsets.get(middle + 1) - 1] ^= 0x55; // the last byte of the content of the record
+        Files.write(autosave.resolve(JOURNAL), journal);
+
+        assertEquals(before, content(recover())); // the records after the corrupted one are ignored too
+    }
+
+    @Test
+    void savingStartsANewGeneration() throws IOException {
+        NewsDocument document = new NewsDocument(format);
+        AutosaveJournal journal = AutosaveJournal.start(document, autosave);
+        document.createField(NewsDocument.DEFAULT_SECTION).setPropertyValue(TITLE, TestFormats.ENGLISH, "saved");
+        document.save(folder.resolve("saved.nmkr"));
+        journal.close();
+
+        // the journal was compacted in a new snapshot and only its header is left
+        assertEquals(List.of(HEADER_SIZE), recordOffsets());
+        assertFalse(AutosaveJournal.hasRecoverableWork(autosave));
+        try (var files = Files.list(autosave)) {
+            assertEquals(List.of("autosave-2.nmkr", JOURNAL), files.map(file -> file.getFileName().toString()).sorted().toList());
+        }
+
+        NewsDocument recovered = recover();
+        assertEquals(content(document), content(recovered));
+    }
+
+    @Test
+    void discardDeletesTheJournal() throws IOException {
+        NewsDocument document = new NewsDocument(format);
+        AutosaveJournal journal = AutosaveJournal.start(document, autosave);
+        document.createField(NewsDocument.DEFAULT_SECTION);
+        journal.discard();
+
+        assertFalse(AutosaveJournal.hasRecoverableWork(autosave));
+        try (var files = Files.list(autosave)) {
+            assertArrayEquals(new Object[0], files.toArray());
+        }
+    }
+
+    @Test
+    void closeKeepsTheJournal() throws IOException {
+        NewsDocument document = editWithAutosave();
+        int size = recordOffsets().size();
+
+        assertTrue(AutosaveJournal.hasRecoverableWork(autosave));
+        assertNotEquals(1, size);
+        assertEquals(content(document), content(recover()));
+    }
+}
@@ -0,0 +1,48 @@
+package ch.clic.newsmaker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class CompiledTemplateTest {
+
+    private static final String TEMPLATE = "<a href=\"@NEWS_DETAILS_URL\">@NEWS_DETAIL_LABEL</a> @NEWS_DETAIL.";
+
+    @Test
+    void slotsSharingAPrefixGetTheirOwnValue() {
+        CompiledTemplate template = CompiledTemplate.compile(TEMPLATE);
+        Map<String, String> values = Map.of(
+                "NEWS_DETAILS_URL", "https://example.org",
+                "NEWS_DETAIL_LABEL", "More",
+                "NEWS_DETAIL", "details");
+
+        StringBuilder out = new StringBuilder();
+        template.render(out, slot -> values.get(slot.name()));
+
+        assertEquals("<a href=\"https://example.org\">More</a> details.", out.toString());
+    }
+
+    @Test
+    void slotsSharingAPrefixGetTheirOwnValueFromASnapshot() {
+        TagTable tags = new TagTable();
+        CompiledTemplate template = CompiledTemplate.compile(TEMPLATE, tags);
+        FieldSnapshot snapshot = FieldSnapshot.empty(tags).withTemplate(template)
+                .withValue(tags.intern("NEWS_DETAILS_URL", false), null, "https://example.org")
+                .withValue(tags.intern("NEWS_DETAIL_LABEL", true), "ENGLISH", "More");
+
+        StringBuilder out = new StringBuilder();
+        template.render(out, snapshot, snapshot.row("ENGLISH"));
+
+        assertEquals("<a href=\"https://example.org\">More</a> @NEWS_DETAIL.", out.toString());
+    }
+
+    @Test
+    void unresolvedSlotsAreKept() {
+        StringBuilder out = new StringBuilder();
+        CompiledTemplate.compile("@A, @B and @ alone").render(out, slot -> slot.name().equals("A") ? "a" : null);
+
+        assertEquals("a, @B and @ alone", out.toString());
+    }
+}
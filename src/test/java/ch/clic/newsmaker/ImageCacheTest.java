@@ -0,0 +1,159 @@
+package ch.clic.newsmaker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.http.HttpClient;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImageCacheTest {
+
+    private static final byte[] IMAGE = new byte[100]; // the content of every image, never decoded
+
+    @TempDir
+    Path folder;
+
+    private HttpServer server;
+    private final Map<String, AtomicInteger> requests = new ConcurrentHashMap<>(); // the requests received by path
+    private final AtomicLong now = new AtomicLong(1_000_000); // the clock of the cache
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            requests.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+            if (path.startsWith("/missing")) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, IMAGE.length);
+                try (OutputStream body = exchange.getResponseBody()) {
+                    body.write(IMAGE);
+                }
+            }
+            exchange.close();
+        });
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop(0);
+    }
+
+    private String url(String path) {
+        return "http://localhost:" + server.getAddress().getPort() + path;
+    }
+
+    private ImageCache open(long maxSize) {
+        return new ImageCache(folder, maxSize, HttpClient.newHttpClient(), now::get);
+    }
+
+    private int requests(String path) {
+        AtomicInteger count = requests.get(path);
+        return count == null ? 0 : count.get();
+    }
+
+    @Test
+    void anImageIsDownloadedOnce() throws IOException {
+        ImageCache cache = open(1000);
+
+        Path file = cache.fetch(url("/a.png")).join();
+        assertArrayEquals(IMAGE, Files.readAllBytes(file));
+        assertEquals(file, cache.fetch(url("/a.png")).join());
+        assertEquals(file, cache.cached(url("/a.png")));
+
+        assertEquals(1, requests("/a.png"));
+        assertEquals(IMAGE.length, cache.size());
+    }
+
+    @Test
+    void localizeOnlyReplacesTheCachedImages() {
+        ImageCache cache = open(1000);
+        Path cached = cache.fetch(url("/a.png")).join();
+
+        String html = "<img src=\"" + url("/a.png") + "\"><img src='" + url("/b.png") + "'><a href=\"" + url("/a.png") + "\">a</a>";
+        String localized = cache.localize(html);
+
+        assertEquals("<img src=\"" + cached.toUri() + "\"><img src='" + url("/b.png") + "'><a href=\"" + url("/a.png") + "\">a</a>",
+                localized);
+        // the image missing from the cache is downloaded for the next time
+        assertNotNull(cache.fetch(url("/b.png")).join());
+        assertEquals(1, requests("/b.png"));
+    }
+
+    @Test
+    void theLeastRecentlyUsedImagesAreEvicted() {
+        ImageCache cache = open(250);
+        Path a = cache.fetch(url("/a.png")).join();
+        Path b = cache.fetch(url("/b.png")).join();
+        cache.cached(url("/a.png")); // b is now the least recently used
+
+        cache.fetch(url("/c.png")).join();
+
+        assertNull(cache.cached(url("/b.png")));
+        assertFalse(Files.exists(b));
+        assertEquals(a, cache.cached(url("/a.png")));
+        assertNotNull(cache.cached(url("/c.png")));
+        assertEquals(2 * IMAGE.length, cache.size());
+    }
+
+    @Test
+    void theImagesAreKeptAfterARestart() throws IOException {
+        Path a = open(1000).fetch(url("/a.png")).join();
+        Files.write(folder.resolve("interrupted.part"), IMAGE); // a download interrupted by the end of NewsMaker
+
+        ImageCache cache = open(1000);
+
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(List.of(a), files.toList());
+        }
+        assertEquals(a, cache.cached(url("/a.png")));
+        assertEquals(IMAGE.length, cache.size());
+        assertEquals(1, requests("/a.png"));
+    }
+
+    @Test
+    void aFailedDownloadIsTriedAgainAfterAMinute() throws IOException {
+        ImageCache cache = open(1000);
+
+        CompletionException failure = assertThrows(CompletionException.class, () -> cache.fetch(url("/missing.png")).join());
+        assertTrue(failure.getMessage().contains("404"), failure.getMessage());
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(0, files.count()); // the .part file of the failed download is deleted
+        }
+
+        // within the minute, the download fails without a request
+        now.addAndGet(59_000);
+        assertThrows(CompletionException.class, () -> cache.fetch(url("/missing.png")).join());
+        assertEquals(1, requests("/missing.png"));
+
+        now.addAndGet(1_000);
+        assertThrows(CompletionException.class, () -> cache.fetch(url("/missing.png")).join());
+        assertEquals(2, requests("/missing.png"));
+    }
+}
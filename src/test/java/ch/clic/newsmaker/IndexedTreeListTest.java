@@ -0,0 +1,88 @@
+package ch.clic.newsmaker;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IndexedTreeListTest {
+
+    @Test
+    void randomEditsMatchAnArrayList() {
+        Random random = new Random(7);
+        IndexedTreeList<Integer> list = new IndexedTreeList<>();
+        List<Integer> expected = new ArrayList<>();
+        int next = 0; // the elements are all different, and boxed once since the list finds them by identity
+
+        for (int step = 0; step < 20_000; step++) {
+            int size = expected.size();
+            switch (size == 0 ? 0 : random.nextInt(6)) {
+                case 0, 1 -> {
+                    int index = random.nextInt(size + 1);
+                    Integer element = next++;
+                    list.add(index, element);
+                    expected.add(index, element);
+                }
+                case 2 -> {
+                    int index = random.nextInt(size);
+                    assertEquals(expected.remove(index), list.remove(index));
+                }
+                case 3 -> {
+                    Integer element = expected.get(random.nextInt(size));
+                    assertTrue(list.remove(element));
+                    expected.remove(element);
+                }
+                case 4 -> {
+                    int from = random.nextInt(size);
+                    int to = random.nextInt(size);
+                    list.move(from, to);
+                    expected.add(to, expected.remove(from));
+                }
+                default -> {
+                    int index = random.nextInt(size);
+                    assertEquals(expected.get(index), list.get(index));
+                    assertEquals(index, list.indexOf(expected.get(index)));
+                    assertEquals(-1, list.indexOf(next)); // not added yet
+                }
+            }
+            assertEquals(expected.size(), list.size());
+            if (step % 500 == 0) assertEquals(expected, new ArrayList<>(list));
+        }
+
+        assertEquals(expected, new ArrayList<>(list));
+        for (int index = 0; index < expected.size(); index++) assertEquals(index, list.indexOf(expected.get(index)));
+    }
+
+    @Test
+    void iteratorRemovesTheElementItReturned() {
+        IndexedTreeList<Integer> list = new IndexedTreeList<>();
+        for (int i = 0; i < 10; i++) list.add(i, i);
+
+        for (Iterator<Integer> iterator = list.iterator(); iterator.hasNext(); ) {
+            if (iterator.next() % 2 == 0) iterator.remove();
+        }
+
+        assertEquals(List.of(1, 3, 5, 7, 9), list);
+        assertEquals(2, list.indexOf(5));
+        assertFalse(list.contains(4));
+    }
+
+    @Test
+    void anElementCanOnlyBeOnceInTheList() {
+        IndexedTreeList<Integer> list = new IndexedTreeList<>();
+        list.add(0, 1);
+        list.add(1, 2);
+
+        assertThrows(IllegalArgumentException.class, () -> list.add(0, 2));
+        assertThrows(IllegalArgumentException.class, () -> list.set(0, 2));
+        assertThrows(IndexOutOfBoundsException.class, () -> list.move(0, 2));
+        assertEquals(List.of(1, 2), list);
+    }
+}
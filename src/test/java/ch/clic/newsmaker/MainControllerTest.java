@@ -0,0 +1,112 @@
+package ch.clic.newsmaker;
+
+import javafx.application.Platform;
+import javafx.scene.control.TextArea;
+import javafx.scene.layout.VBox;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The editors of the fields. They need the JavaFX toolkit, the tests are skipped where it cannot start (without
+ * display).
+ */
+class MainControllerTest {
+
+    private static final Format.Tag DESCRIPTION = new Format.Tag("NEWS_DESCRIPTION", true);
+
+    private static final String DOCUMENT = """
+            {
+              "NEWS" : [ {
+                "section" : "NEWS",
+                "template" : "<p>@NEWS_DESCRIPTION</p>",
+                "language-constant-properties" : { },
+                "language-variable-properties" : {
+                  "FRANCAIS" : { "NEWS_TITLE" : "Titre", "NEWS_DESCRIPTION" : "La description" },
+                  "ENGLISH" : { "NEWS_TITLE" : "Title", "NEWS_DESCRIPTION" : "The description" }
+                }
+              } ]
+            }
+            """;
+
+    private static Boolean toolkit; // null until the toolkit was started once
+
+    @TempDir
+    Path folder;
+
+    private Format format;
+
+    @BeforeEach
+    void createFormat() throws IOException {
+        format = TestFormats.create(folder.resolve("format"));
+    }
+
+    private static synchronized boolean startToolkit() {
+        if (toolkit == null) {
+            try {
+                Platform.startup(() -> {});
+                toolkit = true;
+            } catch (IllegalStateException e) {
+                toolkit = true; // already started
+            } catch (RuntimeException | Error e) {
+                toolkit = false;
+            }
+        }
+        return toolkit;
+    }
+
+    private static <T> T onFxThread(Callable<T> action) throws Exception {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Platform.runLater(() -> {
+            try {
+                result.complete(action.call());
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void buildingTheEditorsKeepsTheDescriptions() throws Exception {
+        assumeTrue(startToolkit(), "the JavaFX toolkit cannot start");
+        Path file = Files.writeString(folder.resolve("document.nmkr"), DOCUMENT);
+        NewsDocument document = NewsDocument.load(format, file);
+        NewsFieldBean field = document.getFields().get(0);
+        ImageCache images = new ImageCache(folder.resolve("images"), 0, null);
+
+        Map<String, VBox> editors = onFxThread(() -> Map.of(
+                TestFormats.FRENCH, MainController.createLanguageEditors(field, TestFormats.FRENCH, images),
+                TestFormats.ENGLISH, MainController.createLanguageEditors(field, TestFormats.ENGLISH, images)));
+
+        assertEquals("La description", field.getSnapshot().value(DESCRIPTION, TestFormats.FRENCH));
+        assertEquals("The description", field.getSnapshot().value(DESCRIPTION, TestFormats.ENGLISH));
+        assertTrue(document.hasNotChanged());
+
+        // the editor shows the description and writes what is typed
+        TextArea english = onFxThread(() -> (TextArea) editors.get(TestFormats.ENGLISH).getChildren().stream()
+                .filter(TextArea.class::isInstance).findFirst().orElseThrow());
+        assertEquals("The description", english.getText());
+        assertEquals(DESCRIPTION.presentationName(), english.getPromptText());
+        onFxThread(() -> {
+            english.setText("Typed");
+            return null;
+        });
+        assertEquals("Typed", field.getSnapshot().value(DESCRIPTION, TestFormats.ENGLISH));
+        assertEquals("La description", field.getSnapshot().value(DESCRIPTION, TestFormats.FRENCH));
+        assertFalse(document.hasNotChanged());
+    }
+}
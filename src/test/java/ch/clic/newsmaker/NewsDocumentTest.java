@@ -0,0 +1,118 @@
+package ch.clic.newsmaker;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class NewsDocumentTest {
+
+    @TempDir
+    Path folder;
+
+    private Format format;
+
+    @BeforeEach
+    void createFormat() throws IOException {
+        format = TestFormats.create(folder);
+    }
+
+    private Path save(String name, String... titles) throws IOException {
+        NewsDocument document = new NewsDocument(format);
+        for (String title : titles) {
+            document.createField(NewsDocument.DEFAULT_SECTION)
+                    .setPropertyValue(new Format.Tag("TITLE", true), TestFormats.ENGLISH, title);
+        }
+        Path file = folder.resolve(name);
+        document.save(file);
+        return file;
+    }
+
+    @Test
+    void anOpenedFileIsSaved() throws IOException {
+        Path file = save("complete.nmkr", "one", "two");
+
+        NewsDocument document = NewsDocument.load(format, file);
+
+        assertEquals(2, document.getFields().size());
+        assertTrue(document.hasNotChanged());
+    }
+
+    @Test
+    void aFileReadPartlyIsNotSaved() throws IOException {
+        Path file = save("truncated.nmkr", "one", "two", "three");
+        String json = Files.readString(file);
+        Files.writeString(file, json.substring(0, json.lastIndexOf("three")));
+
+        NewsDocument document = new NewsDocument(format);
+        assertThrows(IOException.class, () -> document.open(file));
+
+        assertFalse(document.getFields().isEmpty());
+        assertFalse(document.hasNotChanged());
+    }
+
+    @Test
+    void eachLanguageIsExportedWithItsBase() throws IOException {
+        Files.writeString(folder.resolve("base_english.html"), "<main>@NEWS#ENGLISH</main>");
+        Format withBase = TestFormats.create(folder);
+        NewsDocument document = new NewsDocument(withBase);
+        NewsFieldBean field = document.createField(NewsDocument.DEFAULT_SECTION);
+        field.setPropertyValue(new Format.Tag("TITLE", true), TestFormats.ENGLISH, "Title");
+
+        List<Path> files = NewsDocument.exportLanguages(document.createLanguageJobs(), folder.resolve("news.html"));
+
+        assertEquals(List.of(folder.resolve("news_francais.html"), folder.resolve("news_english.html")), files);
+        String english = Files.readString(files.get(1));
+        assertTrue(english.startsWith("<main>") && english.contains("<h1>Title</h1>"), english);
+    }
+
+    @Test
+    void theDefaultLanguageBasesOnlyHaveTheirLanguage() throws IOException {
+        for (String language : List.of(TestFormats.FRENCH, TestFormats.ENGLISH)) {
+            BaseTemplate base = BaseTemplate.compile(
+                    FileManager.readContentOfResource("/assets/base_" + language.toLowerCase() + ".html"));
+
+            assertFalse(base.getPlaceholders().isEmpty());
+            assertTrue(base.getPlaceholders().stream().allMatch(placeholder -> placeholder.language().equals(language)),
+                    base.getPlaceholders().toString());
+        }
+    }
+
+    @Test
+    void aRenderJobKeepsTheValuesOfItsRevision() {
+        Format.Tag title = new Format.Tag("TITLE", true);
+        format.getBaseProperty().set("@NEWS#ENGLISH");
+        NewsDocument document = new NewsDocument(format);
+        NewsFieldBean field = document.createField(NewsDocument.DEFAULT_SECTION);
+        field.setPropertyValue(title, TestFormats.ENGLISH, "Before");
+
+        NewsDocument.RenderJob job = document.createRenderJob();
+        field.setPropertyValue(title, TestFormats.ENGLISH, "After"); // edited while the job waits for a render thread
+
+        assertTrue(job.render().contains("<h1>Before</h1>"));
+        assertTrue(document.createRenderJob().render().contains("<h1>After</h1>"));
+    }
+
+    @Test
+    void theBaseIsCompiledWhenItIsSet() {
+        format.getBaseProperty().set("<main>@NEWS#ENGLISH</main>");
+        BaseTemplate compiled = format.getCompiledBase();
+
+        assertEquals(List.of(new BaseTemplate.Placeholder("NEWS", TestFormats.ENGLISH)), compiled.getPlaceholders());
+        format.getBaseProperty().set(new String("<main>@NEWS#ENGLISH</main>")); // the same base is not compiled again
+        assertSame(compiled, format.getCompiledBase());
+
+        format.getBaseProperty().set(null);
+        assertEquals(List.of(), format.getCompiledBase().getPlaceholders());
+    }
+}
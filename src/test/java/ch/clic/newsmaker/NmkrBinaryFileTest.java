@@ -0,0 +1,158 @@
+package ch.clic.newsmaker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class NmkrBinaryFileTest {
+
+    // two sections, a field without constant properties and a field with a value in a single language
+    private static final String DOCUMENT = """
+            {
+              "NEWS" : [ {
+                "section" : "NEWS",
+                "template" : "<h1>@TITLE</h1><p>@TEXT</p>",
+                "language-constant-properties" : { "URL" : "https://example.org/é", "IMAGE" : "a.png" },
+                "language-variable-properties" : {
+                  "FRANCAIS" : { "TITLE" : "Titre", "TEXT" : "Texte accentué" },
+                  "ENGLISH" : { "TITLE" : "Title", "TEXT" : "Text" }
+                }
+              }, {
+                "section" : "NEWS",
+                "template" : "<h1>@TITLE</h1>",
+                "language-constant-properties" : { },
+                "language-variable-properties" : {
+                  "FRANCAIS" : { "TITLE" : "" },
+                  "ENGLISH" : { "TITLE" : "Only in English", "SUBTITLE" : "日本語" }
+                }
+              } ],
+              "EVENTS" : [ {
+                "section" : "EVENTS",
+                "template" : "<h2>@TITLE</h2><p>@DATE</p>",
+                "language-constant-properties" : { "DATE" : "2023-05-01" },
+                "language-variable-properties" : {
+                  "FRANCAIS" : { "TITLE" : "Assemblée" },
+                  "ENGLISH" : { "TITLE" : "Meeting" }
+                }
+              } ]
+            }
+            """;
+
+    @TempDir
+    Path folder;
+
+    private Format format;
+
+    @BeforeEach
+    void createFormat() throws IOException {
+        format = TestFormats.create(folder);
+    }
+
+    private Map<String, List<NewsFieldBean>> readJson(byte[] json) throws IOException {
+        Map<String, List<NewsFieldBean>> sections = new LinkedHashMap<>();
+        NmkrFile.read(new ByteArrayInputStream(json), section -> newField(sections, section));
+        return sections;
+    }
+
+    private Map<String, List<NewsFieldBean>> readBinary(byte[] binary) throws IOException {
+        Map<String, List<NewsFieldBean>> sections = new LinkedHashMap<>();
+        NmkrBinaryFile.open(binary).readAll(section -> newField(sections, section));
+        return sections;
+    }
+
+    private NewsFieldBean newField(Map<String, List<NewsFieldBean>> sections, String section) {
+        NewsFieldBean field = new NewsFieldBean(format.presets.get(0), format);
+        sections.computeIfAbsent(section, s -> new ArrayList<>()).add(field);
+        return field;
+    }
+
+    private byte[] toBinary(Map<String, List<NewsFieldBean>> sections) throws IOException {
+        ByteArrayOutputStream binary = new ByteArrayOutputStream();
+        NmkrBinaryFile.write(NmkrFile.snapshots(sections), format.languages, binary);
+        return binary.toByteArray();
+    }
+
+    private byte[] toJson(Map<String, List<NewsFieldBean>> sections) throws IOException {
+        ByteArrayOutputStream json = new ByteArrayOutputStream();
+        NmkrFile.write(sections, format.languages, json);
+        return json.toByteArray();
+    }
+
+    private byte[] binaryDocument() throws IOException {
+        return toBinary(readJson(DOCUMENT.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    void binaryFileReadsLikeTheJsonFile() throws IOException {
+        Map<String, List<NewsFieldBean>> fromJson = readJson(DOCUMENT.getBytes(StandardCharsets.UTF_8));
+        Map<String, List<NewsFieldBean>> fromBinary = readBinary(toBinary(fromJson));
+
+        // every field with its section, template, values and languages
+        assertEquals(NmkrFile.snapshots(fromJson), NmkrFile.snapshots(fromBinary));
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.readTree(DOCUMENT).toString(), mapper.readTree(toJson(fromBinary)).toString());
+    }
+
+    @Test
+    void binaryFileReadsTheFieldsOneByOne() throws IOException {
+        Map<String, List<NewsFieldBean>> fromJson = readJson(DOCUMENT.getBytes(StandardCharsets.UTF_8));
+        NmkrBinaryFile file = NmkrBinaryFile.open(toBinary(fromJson));
+
+        List<FieldSnapshot> expected = fromJson.values().stream().flatMap(List::stream).map(NewsFieldBean::getSnapshot).toList();
+        assertEquals(expected.size(), file.fieldCount());
+        for (int field = file.fieldCount() - 1; field >= 0; field--) {
+            NewsFieldBean read = new NewsFieldBean(format.presets.get(0), format);
+            file.readField(field, read);
+
+            assertEquals(expected.get(field).getSection(), file.section(field));
+            assertEquals(expected.get(field), read.getSnapshot());
+        }
+    }
+
+    @Test
+    void truncatedFileThrowsIOException() throws IOException {
+        byte[] binary = binaryDocument();
+
+        for (int length = 0; length < binary.length; length++) {
+            byte[] truncated = Arrays.copyOf(binary, length);
+            assertThrows(IOException.class, () -> readBinary(truncated), "truncated at " + length);
+        }
+    }
+
+    @Test
+    void corruptedFileThrowsIOException() throws IOException {
+        byte[] binary = binaryDocument();
+        Random random = new Random(42);
+
+        for (int position = 0; position < binary.length; position++) {
+            for (int value : new int[]{0x00, 0x7F, 0x80, 0xFF, random.nextInt(256)}) {
+                byte[] corrupted = binary.clone();
+                corrupted[position] = (byte) value;
+                try {
+                    readBinary(corrupted); // a value changed in a string can still be read
+                } catch (IOException e) {
+                    // expected
+                } catch (RuntimeException e) {
+                    fail("byte " + position + " set to " + value, e);
+                }
+            }
+        }
+    }
+}
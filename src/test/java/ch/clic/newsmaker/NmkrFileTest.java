@@ -0,0 +1,64 @@
+package ch.clic.newsmaker;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class NmkrFileTest {
+
+    // the second field has its tags in the opposite order of their ids, given by the first field
+    private static final String DOCUMENT = """
+            {
+              "NEWS" : [ {
+                "section" : "NEWS",
+                "template" : "<h1>@TITLE</h1>",
+                "language-constant-properties" : { "URL" : "https://example.org", "IMAGE" : "a.png" },
+                "language-variable-properties" : {
+                  "FRANCAIS" : { "TITLE" : "Titre", "TEXT" : "Texte" },
+                  "ENGLISH" : { "TITLE" : "Title", "TEXT" : "Text" }
+                }
+              }, {
+                "section" : "NEWS",
+                "template" : "<h1>@TITLE</h1>",
+                "language-constant-properties" : { "IMAGE" : "b.png", "URL" : "https://example.com" },
+                "language-variable-properties" : {
+                  "FRANCAIS" : { "TEXT" : "Autre", "TITLE" : "Deux" },
+                  "ENGLISH" : { "TEXT" : "Other", "TITLE" : "Two" }
+                }
+              } ]
+            }
+            """;
+
+    @TempDir
+    Path folder;
+
+    @Test
+    void savingKeepsTheOrderOfTheProperties() throws IOException {
+        Format format = TestFormats.create(folder);
+
+        Map<String, List<NewsFieldBean>> sections = new LinkedHashMap<>();
+        NmkrFile.read(new ByteArrayInputStream(DOCUMENT.getBytes(StandardCharsets.UTF_8)), section -> {
+            NewsFieldBean field = new NewsFieldBean(format.presets.get(0), format);
+            sections.computeIfAbsent(section, s -> new ArrayList<>()).add(field);
+            return field;
+        });
+
+        ByteArrayOutputStream saved = new ByteArrayOutputStream();
+        NmkrFile.write(sections, format.languages, saved);
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(mapper.readTree(DOCUMENT).toString(), mapper.readTree(saved.toByteArray()).toString());
+    }
+}
@@ -0,0 +1,30 @@
+package ch.clic.newsmaker;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Formats built in a temporary folder, without the files of NewsMakerConfig
+ */
+final class TestFormats {
+
+    static final String FRENCH = "FRANCAIS";
+    static final String ENGLISH = "ENGLISH";
+
+    private TestFormats() {}
+
+    /**
+     * @param folder the folder of the templates
+     * @return a format in French and English with a "news" and an "event" preset
+     */
+    static Format create(Path folder) throws IOException {
+        TemplateRegistry templates = new TemplateRegistry(folder);
+        Format.Preset news = new Format.Preset("news",
+                templates.intern("<h1>@TITLE</h1><p>@TEXT</p><a href=\"@URL\">@URL</a>"), "NEWS", Map.of());
+        Format.Preset event = new Format.Preset("event", templates.intern("<h2>@TITLE</h2><p>@DATE</p>"), "EVENTS", Map.of());
+        return new Format(new ArrayList<>(List.of(news, event)), new ArrayList<>(List.of(FRENCH, ENGLISH)), templates);
+    }
+}